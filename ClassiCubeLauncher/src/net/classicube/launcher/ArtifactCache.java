@@ -0,0 +1,162 @@
+package net.classicube.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import net.classicube.shared.SharedUpdaterCode;
+
+// Content-addressed store of previously-deployed artifacts (binaries and resources),
+// keyed by hashes from the remote "version"/"reslist" indexes: a resource's SHA1, or (for jars)
+// a hash of the jar's name and manifest hash. Lets UpdateTask repair or roll back files with a
+// local copy instead of a network fetch.
+// Least-recently-used entries are evicted once the cache grows past MAX_CACHE_SIZE.
+final class ArtifactCache {
+
+    private static final String CACHE_DIR_NAME = "cache";
+    private static final long MAX_CACHE_SIZE = 128 * 1024 * 1024;
+    private static File cacheDir;
+
+    // Finds cache directory. If it does not exist, creates it.
+    private static synchronized File getCacheDir()
+            throws IOException {
+        if (cacheDir == null) {
+            cacheDir = new File(SharedUpdaterCode.getLauncherDir(), CACHE_DIR_NAME);
+        }
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new IOException("Unable to create directory " + cacheDir);
+        }
+        return cacheDir;
+    }
+
+    // Returns the cached file with given hash, or null if there is no such entry.
+    // The caller is responsible for verifying contents before using the file.
+    public static synchronized File get(final String hash) {
+        if (hash == null) {
+            throw new NullPointerException("hash");
+        }
+        if (!isValidKey(hash)) {
+            return null;
+        }
+        try {
+            final File entry = new File(getCacheDir(), hash.toLowerCase());
+            if (!entry.isFile()) {
+                return null;
+            }
+            // Bump entry's LRU timestamp
+            entry.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.WARNING, "Error reading artifact cache", ex);
+            return null;
+        }
+    }
+
+    // Copies a freshly-deployed file into the cache, then evicts old entries if needed.
+    // Failures are logged and otherwise ignored, since the cache is only an optimization.
+    public static synchronized void put(final String hash, final File deployedFile) {
+        if (hash == null) {
+            throw new NullPointerException("hash");
+        }
+        if (deployedFile == null) {
+            throw new NullPointerException("deployedFile");
+        }
+        if (!isValidKey(hash) || deployedFile.length() > MAX_CACHE_SIZE) {
+            return;
+        }
+        try {
+            final File dir = getCacheDir();
+            final File entry = new File(dir, hash.toLowerCase());
+            if (entry.isFile()) {
+                entry.setLastModified(System.currentTimeMillis());
+                return;
+            }
+            // Copy to a temp file first, so that a partially-copied file is never mistaken for an entry
+            final File tempFile = File.createTempFile(entry.getName(), ".tmp", dir);
+            Files.copy(deployedFile.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            PathUtil.replaceFile(tempFile, entry);
+            evict();
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.WARNING, "Error adding " + deployedFile.getName() + " to artifact cache", ex);
+        }
+    }
+
+    // Drops an entry (e.g. if it failed verification).
+    public static synchronized void remove(final String hash) {
+        final File entry = get(hash);
+        if (entry != null && !entry.delete()) {
+            LogUtil.getLogger().log(Level.WARNING, "Unable to delete cache entry {0}", hash);
+        }
+    }
+
+    // Places a copy of the cached file at destFile. Always a real copy, never a hardlink: entries'
+    // timestamps are bumped for LRU (which would change the installed file's fingerprint), and
+    // damage to the installed file must not spread to the cached copy.
+    public static void restore(final File cachedFile, final File destFile)
+            throws IOException {
+        if (cachedFile == null) {
+            throw new NullPointerException("cachedFile");
+        }
+        if (destFile == null) {
+            throw new NullPointerException("destFile");
+        }
+        final File parentDir = destFile.getCanonicalFile().getParentFile();
+        if (!parentDir.exists() && !parentDir.mkdirs()) {
+            throw new IOException("Unable to make directory " + parentDir);
+        }
+        final File stagingFile = new File(parentDir, destFile.getName() + ".restoring");
+        Files.copy(cachedFile.toPath(), stagingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        PathUtil.replaceFile(stagingFile, destFile);
+    }
+
+    // Removes least-recently-used entries until the total size is under MAX_CACHE_SIZE.
+    private static void evict()
+            throws IOException {
+        final File[] entries = getCacheDir().listFiles();
+        if (entries == null) {
+            return;
+        }
+        long totalSize = 0;
+        for (final File entry : entries) {
+            totalSize += entry.length();
+        }
+        if (totalSize <= MAX_CACHE_SIZE) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (final File entry : entries) {
+            if (totalSize <= MAX_CACHE_SIZE) {
+                break;
+            }
+            final long entrySize = entry.length();
+            if (entry.delete()) {
+                totalSize -= entrySize;
+                LogUtil.getLogger().log(Level.FINE, "Evicted {0} from artifact cache", entry.getName());
+            }
+        }
+    }
+
+    // Only accept hex hashes as keys (lzma.jar has no hash, for example).
+    private static boolean isValidKey(final String hash) {
+        if (hash.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            if (Character.digit(hash.charAt(i), 16) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ArtifactCache() {
+    }
+}
@@ -0,0 +1,200 @@
+package net.classicube.launcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import net.classicube.shared.ChecksumUtil;
+
+// Parses the remote index of binaries, as written by HashGen. It comes in two formats:
+//
+// Text ("version"), one line per file, space-separated. Only the first three columns are
+// required, and older launchers ignore the rest:
+//   <name> <compressedSize> <manifestHash> [<chunkSize>:<sha1>,<sha1>,... [<unpackedSize> <fileSha1>]]
+//
+// Binary ("version.bin"), big-endian:
+//   "CCIX", u16 format version, u32 entry count, then for each entry:
+//   UTF name, i64 compressed size, i64 unpacked size, u8 flags, [20-byte manifest SHA1],
+//   20-byte file SHA1, i32 chunk size, i32 chunk count, 20-byte SHA1 per chunk
+//
+// Sizes are -1 if unknown. Hashes cover: the manifest of the unpacked jar (what UpdateTask
+// compares against installed files), the whole compressed file, and each chunk of it.
+final class ArtifactIndex {
+
+    static final byte[] BINARY_MAGIC = {'C', 'C', 'I', 'X'};
+    static final int BINARY_FORMAT_VERSION = 1;
+    static final int FLAG_HAS_MANIFEST = 1;
+    static final String NO_MANIFEST_HASH = ChecksumUtil.NO_MANIFEST_HASH;
+    private static final int SHA1_LENGTH = 20;
+    // Smallest possible binary entry: empty name, sizes, flags, file SHA1, chunk size and count
+    private static final int MIN_BINARY_ENTRY_LENGTH = 2 + 8 + 8 + 1 + SHA1_LENGTH + 4 + 4;
+
+    // Parses the text format. Malformed lines are skipped (and logged).
+    public static HashMap<String, Entry> parseText(final String index) {
+        if (index == null) {
+            throw new NullPointerException("index");
+        }
+        final HashMap<String, Entry> entries = new HashMap<>();
+        final List<String> columns = new ArrayList<>();
+        int lineStart = 0;
+        while (lineStart < index.length()) {
+            int lineEnd = index.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = index.length();
+            }
+            splitColumns(index, lineStart, lineEnd, columns);
+            lineStart = lineEnd + 1;
+            if (columns.isEmpty()) {
+                continue;
+            }
+            if (columns.size() < 3) {
+                LogUtil.getLogger().log(Level.WARNING, "Skipping malformed index line: {0}", columns);
+                continue;
+            }
+            final Entry entry = new Entry();
+            entry.name = columns.get(0);
+            entry.size = parseSize(columns.get(1));
+            entry.hash = columns.get(2).toLowerCase();
+            if (columns.size() > 3) {
+                parseChunkHashes(entry, columns.get(3));
+            }
+            if (columns.size() > 5) {
+                entry.unpackedSize = parseSize(columns.get(4));
+                entry.fileHash = columns.get(5).toLowerCase();
+            }
+            entries.put(entry.name.toLowerCase(), entry);
+        }
+        return entries;
+    }
+
+    // Splits [start, end) of a line at spaces (ignoring a trailing '\r'), without regex.
+    private static void splitColumns(final String text, final int start, int end, final List<String> columns) {
+        columns.clear();
+        if (end > start && text.charAt(end - 1) == '\r') {
+            end--;
+        }
+        int columnStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || text.charAt(i) == ' ') {
+                if (i > columnStart) {
+                    columns.add(text.substring(columnStart, i));
+                }
+                columnStart = i + 1;
+            }
+        }
+    }
+
+    private static long parseSize(final String column) {
+        try {
+            return Long.parseLong(column);
+        } catch (final NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // "<chunkSize>:<sha1>,<sha1>,..." -- SHA1 of each chunkSize bytes of the compressed file.
+    private static void parseChunkHashes(final Entry entry, final String column) {
+        final int colon = column.indexOf(':');
+        final long chunkSize = (colon > 0 ? parseSize(column.substring(0, colon)) : -1);
+        if (chunkSize <= 0) {
+            LogUtil.getLogger().log(Level.WARNING, "Ignoring malformed chunk hashes for {0}", entry.name);
+            return;
+        }
+        final List<String> hashes = new ArrayList<>();
+        int hashStart = colon + 1;
+        while (hashStart <= column.length()) {
+            int hashEnd = column.indexOf(',', hashStart);
+            if (hashEnd < 0) {
+                hashEnd = column.length();
+            }
+            hashes.add(column.substring(hashStart, hashEnd).toLowerCase());
+            hashStart = hashEnd + 1;
+        }
+        entry.chunkSize = chunkSize;
+        entry.chunkHashes = hashes;
+    }
+
+    // Parses the binary format. Throws if the data is not a (supported) binary index.
+    // Counts are checked against the bytes that remain before anything is allocated for them,
+    // so a truncated or corrupt index fails with an IOException instead of running out of memory.
+    public static HashMap<String, Entry> parseBinary(final byte[] index)
+            throws IOException {
+        if (index == null) {
+            throw new NullPointerException("index");
+        }
+        final HashMap<String, Entry> entries = new HashMap<>();
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(index);
+        try (final DataInputStream in = new DataInputStream(bytes)) {
+            final byte[] magic = new byte[BINARY_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, BINARY_MAGIC)) {
+                throw new IOException("Not a binary artifact index");
+            }
+            final int version = in.readUnsignedShort();
+            if (version != BINARY_FORMAT_VERSION) {
+                throw new IOException("Unsupported artifact index version: " + version);
+            }
+            final int count = in.readInt();
+            if (count < 0 || count > bytes.available() / MIN_BINARY_ENTRY_LENGTH) {
+                throw new IOException("Malformed artifact index entry count: " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                final Entry entry = new Entry();
+                entry.name = in.readUTF();
+                entry.size = in.readLong();
+                entry.unpackedSize = in.readLong();
+                final int flags = in.readUnsignedByte();
+                entry.hash = ((flags & FLAG_HAS_MANIFEST) != 0 ? readSha1(in) : NO_MANIFEST_HASH);
+                entry.fileHash = readSha1(in);
+                final int chunkSize = in.readInt();
+                final int chunkCount = in.readInt();
+                if (chunkCount < 0 || chunkCount > bytes.available() / SHA1_LENGTH
+                        || (chunkCount > 0 && chunkSize <= 0)) {
+                    throw new IOException("Malformed chunk list for " + entry.name);
+                }
+                if (chunkCount > 0) {
+                    entry.chunkSize = chunkSize;
+                    entry.chunkHashes = new ArrayList<>(chunkCount);
+                    for (int j = 0; j < chunkCount; j++) {
+                        entry.chunkHashes.add(readSha1(in));
+                    }
+                }
+                entries.put(entry.name.toLowerCase(), entry);
+            }
+        } catch (final EOFException ex) {
+            throw new IOException("Artifact index is truncated", ex);
+        }
+        return entries;
+    }
+
+    private static String readSha1(final DataInputStream in)
+            throws IOException {
+        final byte[] hash = new byte[SHA1_LENGTH];
+        in.readFully(hash);
+        return ChecksumUtil.toHexString(hash);
+    }
+
+    // What the index says about one remote file.
+    public final static class Entry {
+
+        String name;
+        // manifest hash of the unpacked jar
+        String hash;
+        // size of the file as downloaded, and after unpacking
+        long size = -1;
+        long unpackedSize = -1;
+        // SHA1 of the whole downloaded file (if known)
+        String fileHash;
+        // SHA1 of each chunkSize bytes of the downloaded file (if known)
+        long chunkSize;
+        List<String> chunkHashes;
+    }
+
+    private ArtifactIndex() {
+    }
+}
@@ -3,6 +3,7 @@ package net.classicube.launcher;
 import com.grack.nanojson.JsonArray;
 import com.grack.nanojson.JsonObject;
 import com.grack.nanojson.JsonParser;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -176,11 +177,14 @@ final class ClassiCubeNetSession extends GameSession {
         protected ServerListEntry[] doInBackground()
                 throws Exception {
             LogUtil.getLogger().log(Level.FINE, "ClassiCubeNetGetServerListWorker");
-            final String serverListString = HttpUtil.downloadString(SERVER_LIST_URL);
+            final JsonObject serverList = HttpUtil.downloadJsonShared(SERVER_LIST_URL, true);
+            if (serverList == null) {
+                throw new IOException("Could not download server list.");
+            }
 
             final ArrayList<ServerListEntry> servers = new ArrayList<>();
 
-            final JsonArray array = JsonParser.object().from(serverListString).getArray("servers");
+            final JsonArray array = serverList.getArray("servers");
 
             for (final Object rawRow : array) { //iterate through and add servers to the list
                 final JsonObject row = (JsonObject) rawRow;
@@ -94,7 +94,18 @@ final public class ClientLauncher {
             } else {
                 processBuilder.start();
                 if (!Prefs.getKeepOpen()) {
-                    System.exit(0);
+                    // Resources may still be downloading in the background. Let them finish on a
+                    // (non-daemon) thread of their own, instead of blocking the EDT, then exit.
+                    final Thread exitThread = new Thread("ExitAfterDownloads") {
+                        @Override
+                        public void run() {
+                            UpdateTask.getInstance().waitForDeferredDownloads();
+                            RequestTimings.logSummary();
+                            System.exit(0);
+                        }
+                    };
+                    exitThread.setDaemon(false);
+                    exitThread.start();
                 }
             }
 
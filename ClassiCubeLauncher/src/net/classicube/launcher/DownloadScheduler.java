@@ -0,0 +1,216 @@
+package net.classicube.launcher;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+
+// Runs queued downloads on a pool of worker threads. Unlike a fixed thread count, the number of
+// downloads that may run at once is adjusted based on observed throughput: it keeps growing while
+// adding a download makes things faster, and shrinks when it makes things slower.
+// Queued items are taken in priority order (e.g. largest first), FIFO among equals.
+final class DownloadScheduler<T> {
+
+    private static final int INITIAL_CONCURRENCY = 2;
+    private static final long SAMPLE_INTERVAL_NANOS = 1000L * 1000 * 1000;
+    private static final double ADJUST_THRESHOLD = 0.10;
+    private final Object lock = new Object();
+    private final PriorityQueue<QueuedItem<T>> queue;
+    private final Handler<T> handler;
+    private final Thread[] workerThreads;
+    private final int maxConcurrency;
+    private int allowedConcurrency, activeCount;
+    private long nextSequenceNumber;
+    private boolean finished;
+
+    // throughput sampling
+    private long sampleStartNanos, sampleBytes;
+    private double lastThroughput;
+
+    public interface Handler<T> {
+
+        // Downloads and deploys given item. Returns number of bytes transferred.
+        // Any exceptions should be handled (and logged) by the handler.
+        long process(T item);
+    }
+
+    public DownloadScheduler(final Comparator<T> priority, final int maxConcurrency, final Handler<T> handler) {
+        if (priority == null) {
+            throw new NullPointerException("priority");
+        }
+        if (handler == null) {
+            throw new NullPointerException("handler");
+        }
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency");
+        }
+        this.queue = new PriorityQueue<>(16, new Comparator<QueuedItem<T>>() {
+            @Override
+            public int compare(final QueuedItem<T> a, final QueuedItem<T> b) {
+                final int result = priority.compare(a.item, b.item);
+                if (result != 0) {
+                    return result;
+                }
+                return Long.compare(a.sequenceNumber, b.sequenceNumber);
+            }
+        });
+        this.handler = handler;
+        this.maxConcurrency = maxConcurrency;
+        this.allowedConcurrency = Math.min(INITIAL_CONCURRENCY, maxConcurrency);
+        this.workerThreads = new Thread[maxConcurrency];
+    }
+
+    // Starts worker threads. Items may be submitted before or after this call.
+    public void start() {
+        synchronized (lock) {
+            sampleStartNanos = System.nanoTime();
+        }
+        for (int i = 0; i < workerThreads.length; i++) {
+            workerThreads[i] = new WorkerThread(i);
+            workerThreads[i].start();
+        }
+    }
+
+    public void submit(final T item) {
+        if (item == null) {
+            throw new NullPointerException("item");
+        }
+        synchronized (lock) {
+            if (finished) {
+                throw new IllegalStateException("Scheduler is already finished.");
+            }
+            queue.add(new QueuedItem<>(item, nextSequenceNumber++));
+            lock.notifyAll();
+        }
+    }
+
+    // Signals that no more items will be submitted, and waits for all queued items to be processed.
+    public void finishAndWait()
+            throws InterruptedException {
+        synchronized (lock) {
+            finished = true;
+            lock.notifyAll();
+        }
+        for (final Thread workerThread : workerThreads) {
+            if (workerThread != null) {
+                workerThread.join();
+            }
+        }
+    }
+
+    // Grabs the next item, waiting until one is available AND there is a free concurrency slot.
+    // Returns null once the scheduler is finished and the queue is empty.
+    private T takeNext()
+            throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                if (queue.isEmpty() && finished) {
+                    return null;
+                }
+                if (!queue.isEmpty() && activeCount < allowedConcurrency) {
+                    activeCount++;
+                    return queue.poll().item;
+                }
+                lock.wait();
+            }
+        }
+    }
+
+    private void onItemDone(final long bytesTransferred) {
+        synchronized (lock) {
+            activeCount--;
+            sampleBytes += Math.max(0, bytesTransferred);
+            final long now = System.nanoTime();
+            final long elapsed = now - sampleStartNanos;
+            if (elapsed >= SAMPLE_INTERVAL_NANOS) {
+                adjustConcurrency(sampleBytes * 1e9 / elapsed);
+                sampleStartNanos = now;
+                sampleBytes = 0;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    // Simple hill-climbing: keep moving in the direction that improves throughput.
+    private void adjustConcurrency(final double throughput) {
+        final int oldConcurrency = allowedConcurrency;
+        if (throughput > lastThroughput * (1 + ADJUST_THRESHOLD)) {
+            allowedConcurrency = Math.min(maxConcurrency, allowedConcurrency + 1);
+        } else if (throughput < lastThroughput * (1 - ADJUST_THRESHOLD)) {
+            allowedConcurrency = Math.max(1, allowedConcurrency - 1);
+        }
+        lastThroughput = throughput;
+        if (oldConcurrency != allowedConcurrency) {
+            LogUtil.getLogger().log(Level.FINE, "Download concurrency {0} -> {1} ({2} KB/s)",
+                    new Object[]{oldConcurrency, allowedConcurrency, (long) (throughput / 1024)});
+        }
+    }
+
+    private final static class QueuedItem<T> {
+
+        final T item;
+        final long sequenceNumber;
+
+        QueuedItem(final T item, final long sequenceNumber) {
+            this.item = item;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+
+    private class WorkerThread extends Thread {
+
+        WorkerThread(final int number) {
+            super("DownloadThread-" + number);
+        }
+
+        @Override
+        public void run() {
+            try {
+                T item;
+                while ((item = takeNext()) != null) {
+                    long bytesTransferred = 0;
+                    try {
+                        bytesTransferred = handler.process(item);
+                    } finally {
+                        onItemDone(bytesTransferred);
+                    }
+                }
+            } catch (final InterruptedException ex) {
+                LogUtil.getLogger().log(Level.SEVERE, "Download thread interrupted", ex);
+            }
+        }
+    }
+
+    // Limits how much memory all in-progress decoders may hold at once. Each LZMA decoder
+    // allocates its own dictionary, so decoding many large files at once can exhaust the heap.
+    public final static class MemoryBudget {
+
+        private final long capacity;
+        private long available;
+
+        public MemoryBudget(final long capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity");
+            }
+            this.capacity = capacity;
+            this.available = capacity;
+        }
+
+        // Reserves given amount of memory, waiting until enough is available.
+        // Requests larger than total capacity are clamped, so that they can eventually proceed.
+        // Returns the amount actually reserved (to be passed to release).
+        public synchronized long acquire(final long amount)
+                throws InterruptedException {
+            final long toReserve = Math.max(0, Math.min(amount, capacity));
+            while (available < toReserve) {
+                wait();
+            }
+            available -= toReserve;
+            return toReserve;
+        }
+
+        public synchronized void release(final long reserved) {
+            available += reserved;
+            notifyAll();
+        }
+    }
+}
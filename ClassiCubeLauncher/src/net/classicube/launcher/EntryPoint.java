@@ -15,6 +15,7 @@ public final class EntryPoint {
 
     public static void main(final String[] args) {
         System.setProperty("java.net.preferIPv4Stack", "true");
+        HttpUtil.initConnectionPool();
 
         // Create launcher's data dir and init logger
         try {
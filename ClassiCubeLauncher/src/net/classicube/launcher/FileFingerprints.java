@@ -0,0 +1,187 @@
+package net.classicube.launcher;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+// Persistent database of file fingerprints: path -> (size, mtime, file key, verified hash,
+// signature-verified flag). Lets UpdateTask skip hashing/verifying files that have not changed
+// since they were last checked. A mismatch on any fingerprint field forces a full check.
+final class FileFingerprints {
+
+    private static final String HEADER = "# ClassiCube launcher file fingerprints v1";
+    private final File dbFile;
+    private final Map<String, Fingerprint> entries = new HashMap<>();
+    private boolean changed;
+
+    private FileFingerprints(final File dbFile) {
+        this.dbFile = dbFile;
+    }
+
+    // Loads the database from given file. A missing or unreadable file results in an empty database.
+    public static FileFingerprints load(final File dbFile) {
+        if (dbFile == null) {
+            throw new NullPointerException("dbFile");
+        }
+        final FileFingerprints db = new FileFingerprints(dbFile);
+        if (!dbFile.exists()) {
+            return db;
+        }
+        try (final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(dbFile), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine())) {
+                LogUtil.getLogger().log(Level.INFO, "Ignoring outdated fingerprint database.");
+                return db;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final Fingerprint fp = Fingerprint.parse(line);
+                if (fp != null) {
+                    db.entries.put(fp.path, fp);
+                }
+            }
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.WARNING, "Error loading fingerprint database. Will re-check all files.", ex);
+            db.entries.clear();
+        }
+        return db;
+    }
+
+    // Returns the hash recorded for this file, if the file has not changed since.
+    // If requireSignatureVerified is set, only returns hashes recorded with signatures verified.
+    // Returns null if the file needs to be fully checked.
+    public synchronized String getVerifiedHash(final File file, final boolean requireSignatureVerified) {
+        if (file == null) {
+            throw new NullPointerException("file");
+        }
+        final Fingerprint recorded = entries.get(file.getAbsolutePath());
+        if (recorded == null || (requireSignatureVerified && !recorded.signatureVerified)) {
+            return null;
+        }
+        final Fingerprint current = Fingerprint.of(file);
+        if (current == null || !current.sameFileAs(recorded)) {
+            return null;
+        }
+        return recorded.hash;
+    }
+
+    // Records the hash of a file that has just been fully checked.
+    public synchronized void record(final File file, final String hash, final boolean signatureVerified) {
+        if (file == null) {
+            throw new NullPointerException("file");
+        }
+        if (hash == null) {
+            throw new NullPointerException("hash");
+        }
+        final Fingerprint fp = Fingerprint.of(file);
+        if (fp == null) {
+            forget(file);
+            return;
+        }
+        fp.hash = hash;
+        fp.signatureVerified = signatureVerified;
+        entries.put(fp.path, fp);
+        changed = true;
+    }
+
+    public synchronized void forget(final File file) {
+        if (entries.remove(file.getAbsolutePath()) != null) {
+            changed = true;
+        }
+    }
+
+    // Writes the database back to disk (if anything changed).
+    public synchronized void save() {
+        if (!changed) {
+            return;
+        }
+        try {
+            final File tempFile = File.createTempFile(dbFile.getName(), ".tmp", dbFile.getParentFile());
+            try (final BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (final Fingerprint fp : entries.values()) {
+                    writer.write(fp.toString());
+                    writer.newLine();
+                }
+            }
+            PathUtil.replaceFile(tempFile, dbFile);
+            changed = false;
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.WARNING, "Error saving fingerprint database", ex);
+        }
+    }
+
+    private final static class Fingerprint {
+
+        String path;
+        long size;
+        long modifiedTime;
+        String fileKey; // inode on Unix-like systems, empty where not available
+        String hash;
+        boolean signatureVerified;
+
+        // Reads current fingerprint of a file. Returns null if file cannot be read.
+        static Fingerprint of(final File file) {
+            try {
+                final BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) {
+                    return null;
+                }
+                final Fingerprint fp = new Fingerprint();
+                fp.path = file.getAbsolutePath();
+                fp.size = attrs.size();
+                fp.modifiedTime = attrs.lastModifiedTime().toMillis();
+                final Object key = attrs.fileKey();
+                fp.fileKey = (key == null ? "" : key.toString());
+                return fp;
+            } catch (final IOException | SecurityException ex) {
+                return null;
+            }
+        }
+
+        // Line format: size, mtime, file key, signature flag, hash, path (tab-separated)
+        static Fingerprint parse(final String line) {
+            final String[] parts = line.split("\t", 6);
+            if (parts.length != 6) {
+                return null;
+            }
+            try {
+                final Fingerprint fp = new Fingerprint();
+                fp.size = Long.parseLong(parts[0]);
+                fp.modifiedTime = Long.parseLong(parts[1]);
+                fp.fileKey = parts[2];
+                fp.signatureVerified = "1".equals(parts[3]);
+                fp.hash = parts[4];
+                fp.path = parts[5];
+                return fp;
+            } catch (final NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        boolean sameFileAs(final Fingerprint other) {
+            return size == other.size
+                    && modifiedTime == other.modifiedTime
+                    && fileKey.equals(other.fileKey);
+        }
+
+        @Override
+        public String toString() {
+            return size + "\t" + modifiedTime + "\t" + fileKey + "\t"
+                    + (signatureVerified ? "1" : "0") + "\t" + hash + "\t" + path;
+        }
+    }
+}
@@ -144,7 +144,7 @@ public abstract class GameSession {
             LogUtil.getLogger().log(Level.FINE, "GetServerDetailsWorker");
 
             // Fetch the play page
-            final String playPage = HttpUtil.downloadString(url);
+            final String playPage = HttpUtil.downloadStringShared(url);
             if (playPage == null) {
                 return false;
             }
@@ -245,6 +245,7 @@ public abstract class GameSession {
     protected void clearStoredSession() {
         try {
             cookieJar.removeAll();
+            HttpUtil.forgetSharedResponses();
             storeCookies();
             final Preferences lastUserNode = this.store.node(LAST_SESSION_NODE_NAME);
             lastUserNode.removeNode();
@@ -334,6 +335,8 @@ public abstract class GameSession {
             throw new NullPointerException("cookieName");
         }
         cookieJar.removeAll();
+        // Responses shared within the previous session must not leak into this one.
+        HttpUtil.forgetSharedResponses();
         if (remember && passwordHasNotChanged()) {
             this.loadCookies();
             if (hasCookie(cookieName)) {
@@ -39,7 +39,7 @@ public class GetExternalIPTask extends SwingWorker<InetAddress, Boolean> {
         // Try to find out external IP, by sending an HTTP request to known checking services.
         // If one service is down, the next one is tried, until we're out of options.
         for (final String ipCheckUrl : ipCheckUrls) {
-            final String ipString = HttpUtil.downloadString(ipCheckUrl);
+            final String ipString = HttpUtil.downloadStringShared(ipCheckUrl);
             if (ipString != null) {
                 try {
                     return InetAddress.getByName(ipString.trim());
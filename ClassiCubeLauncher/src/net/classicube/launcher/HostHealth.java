@@ -0,0 +1,116 @@
+package net.classicube.launcher;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+// Keeps track of how each remote host has been responding, for HttpUtil:
+//  - A circuit breaker: after several consecutive failures, requests to that host fail right
+//    away for a while (instead of each one waiting for a timeout). After that, one trial request
+//    is let through; if it succeeds, the host is considered up again. A trial that never reports
+//    back (see releaseTrial) expires after TRIAL_EXPIRY_NANOS, so it can't lock the host out.
+//  - A window of recent response times, used to decide when to send a hedged request.
+final class HostHealth {
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long OPEN_NANOS = 30L * 1000 * 1000 * 1000;
+    // Longer than HttpUtil's default connect + read timeouts
+    private static final long TRIAL_EXPIRY_NANOS = 60L * 1000 * 1000 * 1000;
+    private static final int LATENCY_WINDOW = 50,
+            MIN_LATENCY_SAMPLES = 10;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final Map<String, HostHealth> hosts = new HashMap<>();
+    private final String host;
+    private int consecutiveFailures;
+    private long openUntilNanos, trialStartNanos;
+    private boolean isOpen, trialInProgress;
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private int latencyCount, nextLatencyIndex;
+
+    private HostHealth(final String host) {
+        this.host = host;
+    }
+
+    public static synchronized HostHealth forUrl(final URL url) {
+        if (url == null) {
+            throw new NullPointerException("url");
+        }
+        final String host = url.getHost().toLowerCase();
+        HostHealth health = hosts.get(host);
+        if (health == null) {
+            health = new HostHealth(host);
+            hosts.put(host, health);
+        }
+        return health;
+    }
+
+    // Throws if the host is known to be down. Otherwise, the request may proceed.
+    public synchronized void checkAvailable()
+            throws UnavailableException {
+        if (!isOpen) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (now - openUntilNanos < 0 || (trialInProgress && now - trialStartNanos < TRIAL_EXPIRY_NANOS)) {
+            throw new UnavailableException(host);
+        }
+        // Cool-down is over: let one request through to see if host is back.
+        trialInProgress = true;
+        trialStartNanos = now;
+    }
+
+    // Called when a request ends without recordSuccess/recordFailure (e.g. a RuntimeException),
+    // so that the next request may be the trial instead.
+    public synchronized void releaseTrial() {
+        trialInProgress = false;
+    }
+
+    // Records that the host responded (with any status below 500), and how long it took.
+    public synchronized void recordSuccess(final long latencyNanos) {
+        if (isOpen) {
+            LogUtil.getLogger().log(Level.INFO, "{0} is reachable again", host);
+        }
+        consecutiveFailures = 0;
+        isOpen = false;
+        trialInProgress = false;
+        latencies[nextLatencyIndex] = latencyNanos;
+        nextLatencyIndex = (nextLatencyIndex + 1) % LATENCY_WINDOW;
+        latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW);
+    }
+
+    // Records a failed request (could not connect, timed out, or 5xx response).
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        trialInProgress = false;
+        if (isOpen || consecutiveFailures >= FAILURE_THRESHOLD) {
+            if (!isOpen) {
+                LogUtil.getLogger().log(Level.WARNING,
+                        "{0} appears to be down. Requests to it will fail immediately for a while.", host);
+            }
+            isOpen = true;
+            openUntilNanos = System.nanoTime() + OPEN_NANOS;
+        }
+    }
+
+    // How long to wait for a response before sending a hedged request: the 95th percentile of
+    // recent response times. Returns -1 if there is not enough data to tell.
+    public synchronized long getHedgeDelayNanos() {
+        if (latencyCount < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        final long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * HEDGE_PERCENTILE) - 1)];
+    }
+
+    // Thrown instead of making a request to a host that is known to be down.
+    public final static class UnavailableException extends IOException {
+
+        UnavailableException(final String host) {
+            super(host + " is unavailable (too many recent failures)");
+        }
+    }
+}
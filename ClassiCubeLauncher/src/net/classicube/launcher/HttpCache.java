@@ -0,0 +1,382 @@
+package net.classicube.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CookieHandler;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import net.classicube.shared.ChecksumUtil;
+import net.classicube.shared.SharedUpdaterCode;
+
+// Disk cache for text responses to HttpUtil's GETs, following the usual HTTP rules for a private
+// cache: Cache-Control (max-age, no-cache, no-store, stale-while-revalidate), Expires, and
+// validators (ETag/Last-Modified) for revalidation. One file per URL, under the launcher dir.
+// Least-recently-used entries are evicted once the cache grows past its size cap (set with
+// -Dclassicube.http.cacheSize, in bytes; 0 disables the cache).
+// To avoid mixing up accounts, responses that set cookies, vary on anything but encoding, or were
+// requested with cookies (unless marked "public") are not stored, and the whole cache is cleared
+// whenever the session changes. Pages that sign in or out never go through the cache at all.
+final class HttpCache {
+
+    private static final String CACHE_DIR_NAME = "http-cache";
+    private static final long MAX_CACHE_SIZE = Long.getLong("classicube.http.cacheSize", 8 * 1024 * 1024);
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+    private static final String KEY_URL = "url",
+            KEY_BODY = "body",
+            KEY_ETAG = "etag",
+            KEY_LAST_MODIFIED = "lastModified",
+            KEY_MAX_AGE = "maxAge",
+            KEY_STALE_WHILE_REVALIDATE = "staleWhileRevalidate",
+            KEY_FRESH_UNTIL = "freshUntil";
+    private static File cacheDir;
+    private static final Set<String> revalidating = new HashSet<>();
+    private static long hits, staleHits, revalidations, misses;
+
+    // Finds cache directory. If it does not exist, creates it.
+    private static synchronized File getCacheDir()
+            throws IOException {
+        if (cacheDir == null) {
+            cacheDir = new File(SharedUpdaterCode.getLauncherDir(), CACHE_DIR_NAME);
+        }
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new IOException("Unable to create directory " + cacheDir);
+        }
+        return cacheDir;
+    }
+
+    private static File getEntryFile(final String url)
+            throws IOException {
+        final byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        return new File(getCacheDir(), ChecksumUtil.toHexString(ChecksumUtil.createSha1().digest(urlBytes)));
+    }
+
+    // Returns the cached response for given URL (fresh or not), or null if there is none.
+    public static synchronized Entry lookup(final String url) {
+        if (url == null) {
+            throw new NullPointerException("url");
+        }
+        if (MAX_CACHE_SIZE <= 0) {
+            return null;
+        }
+        try {
+            final File file = getEntryFile(url);
+            if (!file.isFile()) {
+                return null;
+            }
+            final Properties props = new Properties();
+            try (final InputStream is = new FileInputStream(file)) {
+                props.load(is);
+            }
+            if (!url.equals(props.getProperty(KEY_URL)) || props.getProperty(KEY_BODY) == null) {
+                return null;
+            }
+            // Bump entry's LRU timestamp
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(props);
+        } catch (final IOException | IllegalArgumentException ex) {
+            LogUtil.getLogger().log(Level.WARNING, "Error reading HTTP cache entry for " + url, ex);
+            return null;
+        }
+    }
+
+    // Removes all entries. Called whenever the session changes.
+    public static synchronized void clear() {
+        if (MAX_CACHE_SIZE <= 0) {
+            return;
+        }
+        try {
+            final File[] entries = getCacheDir().listFiles();
+            if (entries == null) {
+                return;
+            }
+            for (final File entry : entries) {
+                if (!entry.delete()) {
+                    LogUtil.getLogger().log(Level.WARNING, "Unable to delete HTTP cache entry {0}", entry);
+                }
+            }
+            LogUtil.getLogger().log(Level.FINE, "Cleared HTTP cache");
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.WARNING, "Error clearing HTTP cache", ex);
+        }
+    }
+
+    // Stores a successful (200) response, if its headers allow it.
+    public static synchronized void store(final String url, final HttpURLConnection connection, final String body) {
+        if (url == null) {
+            throw new NullPointerException("url");
+        }
+        if (connection == null) {
+            throw new NullPointerException("connection");
+        }
+        if (body == null) {
+            throw new NullPointerException("body");
+        }
+        if (MAX_CACHE_SIZE <= 0 || body.length() > MAX_ENTRY_SIZE || !isStorable(connection)) {
+            return;
+        }
+        final Properties props = new Properties();
+        props.setProperty(KEY_URL, url);
+        props.setProperty(KEY_BODY, body);
+        setIfNotNull(props, KEY_ETAG, connection.getHeaderField("ETag"));
+        setIfNotNull(props, KEY_LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+        final Entry entry = new Entry(props);
+        entry.updateFreshness(connection);
+        if (entry.maxAge <= 0 && entry.etag == null && entry.lastModified == null) {
+            // Would never be usable: always stale, and nothing to revalidate with.
+            return;
+        }
+        save(entry);
+    }
+
+    // Updates freshness of an entry that the server just confirmed (304) to be current.
+    public static synchronized void refresh(final Entry entry, final HttpURLConnection connection) {
+        if (entry == null) {
+            throw new NullPointerException("entry");
+        }
+        if (connection == null) {
+            throw new NullPointerException("connection");
+        }
+        entry.updateFreshness(connection);
+        save(entry);
+    }
+
+    // Marks given URL as being revalidated in the background.
+    // Returns false if it already is, so that only one revalidation runs at a time.
+    public static synchronized boolean startRevalidation(final String url) {
+        return revalidating.add(url);
+    }
+
+    public static synchronized void endRevalidation(final String url) {
+        revalidating.remove(url);
+    }
+
+    // Counts how each lookup was served, and logs the running hit ratio.
+    public static synchronized void countHit(final String url) {
+        hits++;
+        logOutcome("fresh hit", url);
+    }
+
+    public static synchronized void countStaleHit(final String url) {
+        staleHits++;
+        logOutcome("stale hit (revalidating)", url);
+    }
+
+    public static synchronized void countRevalidation(final String url) {
+        revalidations++;
+        logOutcome("revalidated", url);
+    }
+
+    public static synchronized void countMiss(final String url) {
+        misses++;
+        logOutcome("miss", url);
+    }
+
+    private static void logOutcome(final String outcome, final String url) {
+        final long total = hits + staleHits + revalidations + misses;
+        final long served = hits + staleHits + revalidations;
+        LogUtil.getLogger().log(Level.FINE, "HTTP cache {0} for {1}. Hit ratio: {2}/{3} ({4}%)",
+                new Object[]{outcome, url, served, total, (total == 0 ? 0 : served * 100 / total)});
+    }
+
+    // Responses are only stored if they cannot belong to a particular user.
+    private static boolean isStorable(final HttpURLConnection connection) {
+        final Set<String> directives = parseCacheControl(connection);
+        if (directives.contains("no-store") || connection.getHeaderField("Set-Cookie") != null) {
+            return false;
+        }
+        final String vary = connection.getHeaderField("Vary");
+        if (vary != null && !vary.trim().isEmpty() && !vary.trim().equalsIgnoreCase("Accept-Encoding")) {
+            return false;
+        }
+        return directives.contains("public") || !hasCookies(connection);
+    }
+
+    private static boolean hasCookies(final HttpURLConnection connection) {
+        final CookieHandler cookieHandler = CookieHandler.getDefault();
+        if (cookieHandler == null) {
+            return false;
+        }
+        try {
+            final Map<String, List<String>> emptyHeaders = Collections.emptyMap();
+            final Map<String, List<String>> cookieHeaders
+                    = cookieHandler.get(connection.getURL().toURI(), emptyHeaders);
+            for (final List<String> values : cookieHeaders.values()) {
+                for (final String value : values) {
+                    if (!value.isEmpty()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } catch (final IOException | URISyntaxException ex) {
+            return true;
+        }
+    }
+
+    private static Set<String> parseCacheControl(final HttpURLConnection connection) {
+        final Set<String> directives = new HashSet<>();
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (final String directive : cacheControl.split(",")) {
+                directives.add(directive.trim().toLowerCase());
+            }
+        }
+        return directives;
+    }
+
+    // Returns value of a "name=seconds" directive, in milliseconds, or -1 if missing or invalid.
+    private static long getDirectiveMillis(final Set<String> directives, final String name) {
+        for (final String directive : directives) {
+            if (directive.startsWith(name + "=")) {
+                try {
+                    return Math.max(0, Long.parseLong(directive.substring(name.length() + 1).replace("\"", ""))) * 1000;
+                } catch (final NumberFormatException ex) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static void setIfNotNull(final Properties props, final String key, final String value) {
+        if (value != null) {
+            props.setProperty(key, value);
+        }
+    }
+
+    private static void save(final Entry entry) {
+        try {
+            final File file = getEntryFile(entry.url);
+            final File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try (final OutputStream os = new FileOutputStream(tempFile)) {
+                entry.props.store(os, null);
+            }
+            PathUtil.replaceFile(tempFile, file);
+            evict();
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.WARNING, "Error saving HTTP cache entry for " + entry.url, ex);
+        }
+    }
+
+    // Removes least-recently-used entries until the total size is under MAX_CACHE_SIZE.
+    private static void evict()
+            throws IOException {
+        final File[] entries = getCacheDir().listFiles();
+        if (entries == null) {
+            return;
+        }
+        long totalSize = 0;
+        for (final File entry : entries) {
+            totalSize += entry.length();
+        }
+        if (totalSize <= MAX_CACHE_SIZE) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (final File entry : entries) {
+            if (totalSize <= MAX_CACHE_SIZE) {
+                break;
+            }
+            final long entrySize = entry.length();
+            if (entry.delete()) {
+                totalSize -= entrySize;
+                LogUtil.getLogger().log(Level.FINE, "Evicted {0} from HTTP cache", entry.getName());
+            }
+        }
+    }
+
+    public final static class Entry {
+
+        private final Properties props;
+        public final String url, body, etag, lastModified;
+        private long maxAge, staleWhileRevalidate, freshUntil;
+
+        Entry(final Properties props) {
+            this.props = props;
+            this.url = props.getProperty(KEY_URL);
+            this.body = props.getProperty(KEY_BODY);
+            this.etag = props.getProperty(KEY_ETAG);
+            this.lastModified = props.getProperty(KEY_LAST_MODIFIED);
+            this.maxAge = parseLong(props.getProperty(KEY_MAX_AGE));
+            this.staleWhileRevalidate = parseLong(props.getProperty(KEY_STALE_WHILE_REVALIDATE));
+            this.freshUntil = parseLong(props.getProperty(KEY_FRESH_UNTIL));
+        }
+
+        // Whether the entry can be used without asking the server.
+        public boolean isFresh() {
+            return System.currentTimeMillis() < freshUntil;
+        }
+
+        // Whether the (stale) entry may be used while it's being revalidated in the background.
+        public boolean canServeStale() {
+            return System.currentTimeMillis() < freshUntil + staleWhileRevalidate;
+        }
+
+        // Makes given request conditional, so that server can answer "304 Not Modified".
+        public void addValidators(final HttpURLConnection connection) {
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+        }
+
+        // Recalculates freshness from response headers. Cache-Control takes precedence over Expires.
+        // If a 304 response carries neither, the previous lifetime is kept.
+        void updateFreshness(final HttpURLConnection connection) {
+            final Set<String> directives = parseCacheControl(connection);
+            long newMaxAge = getDirectiveMillis(directives, "max-age");
+            if (directives.contains("no-cache")) {
+                newMaxAge = 0;
+            } else if (newMaxAge < 0 && connection.getExpiration() > 0) {
+                final long date = (connection.getDate() > 0 ? connection.getDate() : System.currentTimeMillis());
+                newMaxAge = Math.max(0, connection.getExpiration() - date);
+            }
+            if (newMaxAge >= 0) {
+                maxAge = newMaxAge;
+            }
+            final long newStaleWhileRevalidate = getDirectiveMillis(directives, "stale-while-revalidate");
+            if (newStaleWhileRevalidate >= 0 || newMaxAge >= 0) {
+                staleWhileRevalidate = Math.max(0, newStaleWhileRevalidate);
+            }
+            freshUntil = System.currentTimeMillis() + maxAge;
+            props.setProperty(KEY_MAX_AGE, Long.toString(maxAge));
+            props.setProperty(KEY_STALE_WHILE_REVALIDATE, Long.toString(staleWhileRevalidate));
+            props.setProperty(KEY_FRESH_UNTIL, Long.toString(freshUntil));
+        }
+
+        private static long parseLong(final String value) {
+            if (value == null) {
+                return 0;
+            }
+            try {
+                return Long.parseLong(value);
+            } catch (final NumberFormatException ex) {
+                return 0;
+            }
+        }
+    }
+
+    private HttpCache() {
+    }
+}
@@ -1,21 +1,73 @@
 package net.classicube.launcher;
 
-import java.io.BufferedReader;
+import com.grack.nanojson.JsonObject;
+import com.grack.nanojson.JsonParser;
+import com.grack.nanojson.JsonParserException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 final class HttpUtil {
 
     private static final int MaxRedirects = 3;
     public static final String FORM_DATA = "application/x-www-form-urlencoded";
     public static final String JSON = "application/json";
+    // Max idle connections kept open per host by the JDK's keep-alive cache (JDK default is 5)
+    public static final int MAX_CONNECTIONS_PER_HOST = 8;
+    // Content codings that responses to text/JSON requests may use
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+    // Deadlines (in milliseconds) for connecting, and for each read. Can be overridden.
+    private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("classicube.http.connectTimeout", 10000),
+            READ_TIMEOUT_MILLIS = Integer.getInteger("classicube.http.readTimeout", 30000);
+    // Failed GETs are retried, after a random delay of up to RETRY_BASE_DELAY_MILLIS * 2^(attempt-1)
+    private static final int MAX_GET_ATTEMPTS = 3;
+    private static final long RETRY_BASE_DELAY_MILLIS = 500;
+    // Whether a second ("hedged") GET is sent when the first is slower than usual for that host
+    private static final boolean HEDGING_ENABLED = !Boolean.getBoolean("classicube.http.noHedging");
+    private static ExecutorService requestExecutor;
+    // How long responses fetched by the "Shared" download methods may be reused
+    private static final long SHARED_RESPONSE_MILLIS = 10 * 1000;
+    // Largest streamed response that is still copied into HttpCache
+    private static final int MAX_CAPTURE_SIZE = 1024 * 1024;
+    private static final SingleFlight<String> sharedStrings = new SingleFlight<>(SHARED_RESPONSE_MILLIS);
+    private static final SingleFlight<JsonObject> sharedJson = new SingleFlight<>(SHARED_RESPONSE_MILLIS);
+
+    // Configures the JDK's keep-alive cache. Must be called before any connections are made.
+    // Connections are only reused if responses are fully read and closed (not disconnected).
+    // TLS sessions are resumed by the JDK's default SSL session cache.
+    public static void initConnectionPool() {
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(MAX_CONNECTIONS_PER_HOST));
+        }
+        System.setProperty("http.keepAlive", "true");
+    }
 
     public static HttpURLConnection makeHttpConnection(final String urlString, final byte[] postData, final String contentType)
             throws MalformedURLException, IOException {
@@ -23,8 +75,11 @@ final class HttpUtil {
             throw new NullPointerException("urlString");
         }
         final URL url = new URL(urlString);
+        HostHealth.forUrl(url).checkAvailable();
         final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         connection.setUseCaches(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
         if (postData != null) {
             connection.setRequestMethod("POST");
             connection.setRequestProperty("Accept-Charset", StandardCharsets.UTF_8.name());
@@ -39,26 +94,156 @@ final class HttpUtil {
         return connection;
     }
 
-    // Downloads a string using GET.
-    // Returns null and logs an error on failure.
+    // Downloads a string using GET. Returns null and logs an error on failure.
+    // Sent exactly once, and never answered from HttpCache: for pages that sign in or out,
+    // or hand out tokens and cookies.
     public static String downloadString(final String urlString) {
-        return uploadString(urlString, null, null, MaxRedirects);
+        try {
+            return requestString(urlString, null, null, MaxRedirects);
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.SEVERE, "Error while sending request to " + urlString, ex);
+            return null;
+        }
+    }
+
+    // Same as above, but goes through HttpCache. If retry is set, transient failures are retried,
+    // and slow responses hedged (see sendWithRetries). Only for GETs that don't touch the session
+    // (e.g. server lists): duplicate requests could otherwise race to set cookies, or repeat a
+    // sign-out, and cached responses would skip the server altogether.
+    public static String downloadString(final String urlString, final boolean retry) {
+        final HttpCache.Entry cached = HttpCache.lookup(urlString);
+        if (cached != null && cached.isFresh()) {
+            HttpCache.countHit(urlString);
+            return cached.body;
+        } else if (cached != null && cached.canServeStale()) {
+            HttpCache.countStaleHit(urlString);
+            revalidateInBackground(urlString, cached);
+            return cached.body;
+        }
+        try {
+            if (!retry) {
+                return requestCachedString(urlString, cached);
+            }
+            return sendWithRetries(urlString, new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return requestCachedString(urlString, cached);
+                }
+            });
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.SEVERE, "Error while sending request to " + urlString, ex);
+            return null;
+        }
+    }
+
+    // GETs a string, revalidating the cached copy (if any), and caches the response (if allowed).
+    private static String requestCachedString(final String urlString, final HttpCache.Entry cached)
+            throws IOException {
+        LogUtil.getLogger().log(Level.FINE, "GET {0}", urlString);
+        HttpURLConnection connection = null;
+        try {
+            connection = HttpUtil.makeHttpConnection(urlString, null, null);
+            connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+            if (cached != null) {
+                cached.addValidators(connection);
+            }
+            final int responseCode = sendRequest(connection, null);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                HttpCache.countRevalidation(urlString);
+                HttpCache.refresh(cached, connection);
+                return cached.body;
+            } else if (responseCode == HttpURLConnection.HTTP_MOVED_PERM
+                    || responseCode == HttpURLConnection.HTTP_MOVED_TEMP) {
+                // Redirects across protocols are not followed by HttpURLConnection. Not cached.
+                final String redirectUrl = connection.getHeaderField("location");
+                releaseConnection(connection);
+                connection = null;
+                return requestString(redirectUrl, null, null, MaxRedirects - 1);
+            }
+
+            final boolean badRequest = (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST);
+            final String response = readResponse(connection,
+                    badRequest ? connection.getErrorStream() : connection.getInputStream());
+            if (badRequest) {
+                String errMsg = String.format("Server returned HTTP response code: %d for URL: %s with message:%n%s",
+                        responseCode, urlString, response);
+                throw new StatusException(responseCode, errMsg);
+            }
+            HttpCache.countMiss(urlString);
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                HttpCache.store(urlString, connection, response);
+            }
+            return response;
+
+        } finally {
+            if (connection != null) {
+                releaseConnection(connection);
+            }
+        }
+    }
+
+    // Refreshes a stale cache entry, while the caller goes on with the stale copy.
+    private static void revalidateInBackground(final String urlString, final HttpCache.Entry cached) {
+        if (!HttpCache.startRevalidation(urlString)) {
+            return;
+        }
+        getRequestExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    requestCachedString(urlString, cached);
+                } catch (final IOException ex) {
+                    LogUtil.getLogger().log(Level.FINE, "Background revalidation of " + urlString + " failed", ex);
+                } finally {
+                    HttpCache.endRevalidation(urlString);
+                }
+            }
+        });
+    }
+
+    // Same as downloadString, but concurrent calls for the same URL share one request, and the
+    // response is reused for a few seconds. Only for pages that are the same for every request
+    // within a session -- never for pages with one-time tokens, like sign-in forms.
+    public static String downloadStringShared(final String urlString) {
+        return downloadStringShared(urlString, false);
+    }
+
+    // Same as above, optionally with retries and hedging (see downloadString).
+    public static String downloadStringShared(final String urlString, final boolean retry) {
+        try {
+            return sharedStrings.get(urlString, new Callable<String>() {
+                @Override
+                public String call() {
+                    return downloadString(urlString, retry);
+                }
+            });
+        } catch (final Exception ex) {
+            LogUtil.getLogger().log(Level.SEVERE, "Error while sending request to " + urlString, ex);
+            return null;
+        }
     }
 
     // Uploads a string using POST, then downloads the response.
     // Returns null and logs an error on failure.
+    // POSTs are not retried, since they may not be safe to repeat.
     public static String uploadString(final String urlString, final String dataString, final String contentType) {
-        return uploadString(urlString, dataString, contentType, MaxRedirects);
+        try {
+            return requestString(urlString, dataString, contentType, MaxRedirects);
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.SEVERE, "Error while sending request to " + urlString, ex);
+            return null;
+        }
     }
 
-    private static String uploadString(final String urlString, final String dataString,
-            final String contentType, final int followRedirects) {
+    private static String requestString(final String urlString, final String dataString,
+            final String contentType, final int followRedirects)
+            throws IOException {
         LogUtil.getLogger().log(Level.FINE, "{0} {1}",
                 new Object[]{dataString == null ? "GET" : "POST", urlString});
         HttpURLConnection connection = null;
         final byte[] data;
         if (dataString != null) {
-            data = dataString.getBytes();
+            data = dataString.getBytes(StandardCharsets.UTF_8);
         } else {
             data = null;
         }
@@ -68,23 +253,21 @@ final class HttpUtil {
             //LogUtil.getLogger().log(Level.INFO,connection.getRequestProperties().toString());
 
             connection = HttpUtil.makeHttpConnection(urlString, data, contentType);
+            connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
 
-            // Write POST (if needed)
-            if (data != null) {
-                try (OutputStream os = connection.getOutputStream()) {
-                    os.write(data);
-                }
-            }
+            // Write POST (if needed), and wait for response
+            final int responseCode = sendRequest(connection, data);
 
             // DEBUG: Log response headers
             //LogUtil.getLogger().log(Level.INFO,connection.getHeaderFields().toString());
             // Handle redirects
-            final int responseCode = connection.getResponseCode();
             if (responseCode == HttpURLConnection.HTTP_MOVED_PERM
                     || responseCode == HttpURLConnection.HTTP_MOVED_TEMP) {
                 if (followRedirects > 0) {
                     final String redirectUrl = connection.getHeaderField("location");
-                    return uploadString(redirectUrl, null, contentType, followRedirects - 1);
+                    releaseConnection(connection);
+                    connection = null;
+                    return requestString(redirectUrl, null, contentType, followRedirects - 1);
                 } else {
                     LogUtil.getLogger().log(Level.FINE, "Redirected ({0}) to {1} (not following)",
                             new Object[]{responseCode, urlString});
@@ -92,35 +275,636 @@ final class HttpUtil {
             }
 
             // Read response
-            final StringBuilder response = new StringBuilder();
             final boolean badRequest = (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST);
-            try (final InputStream is = (badRequest ? connection.getErrorStream() : connection.getInputStream())) {
-                try (final InputStreamReader isr = new InputStreamReader(is)) {
-                    try (final BufferedReader rd = new BufferedReader(isr)) {
-                        String line;
-                        while ((line = rd.readLine()) != null) {
-                            response.append(line);
-                            response.append(System.lineSeparator());
-                        }
-                    }
-                }
-            }
+            final String response = readResponse(connection,
+                    badRequest ? connection.getErrorStream() : connection.getInputStream());
             if (badRequest) {
                 String errMsg = String.format("Server returned HTTP response code: %d for URL: %s with message:%n%s",
                         responseCode, urlString, response);
-                throw new IOException(errMsg);
+                throw new StatusException(responseCode, errMsg);
+            }
+
+            return response;
+
+        } finally {
+            if (connection != null) {
+                releaseConnection(connection);
             }
+        }
+    }
 
-            return response.toString();
+    // Downloads a string using GET, unless it has not changed since it was last downloaded.
+    // etag and lastModified are validators from the previous response (either may be null).
+    // Returns null and logs an error on failure.
+    public static ConditionalResponse downloadConditional(final String urlString, final String etag,
+            final String lastModified) {
+        return downloadConditional(urlString, etag, lastModified, false);
+    }
 
+    // Same as above. If binary is set, the body is not decoded as text: each byte becomes one
+    // char (ISO-8859-1), so that getBytes(ISO_8859_1) gives back the exact bytes that were sent.
+    public static ConditionalResponse downloadConditional(final String urlString, final String etag,
+            final String lastModified, final boolean binary) {
+        try {
+            return sendWithRetries(urlString, new Callable<ConditionalResponse>() {
+                @Override
+                public ConditionalResponse call() throws IOException {
+                    return requestConditional(urlString, etag, lastModified, binary);
+                }
+            });
         } catch (final IOException ex) {
             LogUtil.getLogger().log(Level.SEVERE, "Error while sending request to " + urlString, ex);
             return null;
+        }
+    }
+
+    private static ConditionalResponse requestConditional(final String urlString, final String etag,
+            final String lastModified, final boolean binary)
+            throws IOException {
+        LogUtil.getLogger().log(Level.FINE, "GET {0} (conditional)", urlString);
+        HttpURLConnection connection = null;
+        try {
+            connection = HttpUtil.makeHttpConnection(urlString, null, null);
+            connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
 
+            final int responseCode = sendRequest(connection, null);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return new ConditionalResponse(null, etag, lastModified);
+            }
+            final boolean badRequest = (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST);
+            final String response = readResponse(connection,
+                    badRequest ? connection.getErrorStream() : connection.getInputStream(),
+                    (binary && !badRequest ? StandardCharsets.ISO_8859_1 : null));
+            if (badRequest) {
+                String errMsg = String.format("Server returned HTTP response code: %d for URL: %s with message:%n%s",
+                        responseCode, urlString, response);
+                throw new StatusException(responseCode, errMsg);
+            }
+            return new ConditionalResponse(response,
+                    connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+
+        } finally {
+            if (connection != null) {
+                releaseConnection(connection);
+            }
+        }
+    }
+
+    // Sends the request (with POST data, if any), and waits for the response status.
+    // The outcome is recorded in HostHealth: any response below 500 means that the host is up.
+    // Each phase is timed by RequestTimings, until releaseConnection/finishDownload is called.
+    private static int sendRequest(final HttpURLConnection connection, final byte[] postData)
+            throws IOException {
+        final HostHealth health = HostHealth.forUrl(connection.getURL());
+        final RequestTimings.Timing timing
+                = RequestTimings.start(connection.getRequestMethod(), connection.getURL());
+        final long startNanos = System.nanoTime();
+        boolean outcomeRecorded = false;
+        try {
+            final int responseCode;
+            try {
+                connection.connect();
+                timing.connectDone();
+                if (postData != null) {
+                    try (OutputStream os = connection.getOutputStream()) {
+                        os.write(postData);
+                    }
+                }
+                responseCode = connection.getResponseCode();
+                timing.firstByte(responseCode);
+            } catch (final IOException ex) {
+                health.recordFailure();
+                outcomeRecorded = true;
+                RequestTimings.fail(timing);
+                throw ex;
+            }
+            RequestTimings.attach(connection, timing);
+            if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                health.recordFailure();
+            } else {
+                health.recordSuccess(System.nanoTime() - startNanos);
+            }
+            outcomeRecorded = true;
+            return responseCode;
         } finally {
+            if (!outcomeRecorded) {
+                // Ended some other way (e.g. a RuntimeException). Don't leave a trial pending.
+                health.releaseTrial();
+            }
+        }
+    }
+
+    // Runs an idempotent request, retrying with jittered exponential backoff on transient errors.
+    // Only for session-free GETs (indexes, and callers that opt in -- see downloadString).
+    private static <T> T sendWithRetries(final String urlString, final Callable<T> request)
+            throws IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return sendHedged(urlString, request);
+            } catch (final IOException ex) {
+                if (attempt >= MAX_GET_ATTEMPTS || !isRetryable(ex)) {
+                    throw ex;
+                }
+                final long delay = 1 + ThreadLocalRandom.current().nextLong(RETRY_BASE_DELAY_MILLIS << (attempt - 1));
+                LogUtil.getLogger().log(Level.WARNING, "Request to {0} failed ({1}). Retrying in {2} ms.",
+                        new Object[]{urlString, ex, delay});
+                try {
+                    Thread.sleep(delay);
+                } catch (final InterruptedException ex2) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry " + urlString);
+                }
+            }
+        }
+    }
+
+    private static boolean isRetryable(final IOException ex) {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        if (ex instanceof StatusException) {
+            return ((StatusException) ex).responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+        }
+        if (ex instanceof SocketTimeoutException) {
+            // Connect/read timeout (a subclass of InterruptedIOException, but not an interrupt)
+            return true;
+        }
+        return !(ex instanceof HostHealth.UnavailableException
+                || ex instanceof MalformedURLException
+                || ex instanceof FileNotFoundException
+                || ex instanceof InterruptedIOException);
+    }
+
+    // Runs an idempotent request. If it takes longer than 95% of recent requests to the same host,
+    // sends an identical second request, and uses whichever response arrives first.
+    private static <T> T sendHedged(final String urlString, final Callable<T> request)
+            throws IOException {
+        final long hedgeDelay = (HEDGING_ENABLED ? HostHealth.forUrl(new URL(urlString)).getHedgeDelayNanos() : -1);
+        if (hedgeDelay < 0) {
+            try {
+                return request.call();
+            } catch (final IOException | RuntimeException ex) {
+                throw ex;
+            } catch (final Exception ex) {
+                throw new IOException(ex);
+            }
+        }
+        final CompletionService<T> completionService = new ExecutorCompletionService<>(getRequestExecutor());
+        try {
+            completionService.submit(request);
+            int outstanding = 1;
+            Future<T> done = completionService.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+            if (done == null) {
+                LogUtil.getLogger().log(Level.FINE, "Sending hedged request to {0}", urlString);
+                completionService.submit(request);
+                outstanding++;
+                done = completionService.take();
+            }
+            while (true) {
+                outstanding--;
+                try {
+                    return done.get();
+                } catch (final ExecutionException ex) {
+                    if (outstanding == 0) {
+                        if (ex.getCause() instanceof IOException) {
+                            throw (IOException) ex.getCause();
+                        }
+                        throw new IOException(ex.getCause());
+                    }
+                    // The other request may still succeed.
+                    done = completionService.take();
+                }
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + urlString);
+        }
+    }
+
+    private static synchronized ExecutorService getRequestExecutor() {
+        if (requestExecutor == null) {
+            requestExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "HttpRequest");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return requestExecutor;
+    }
+
+    // Sends a GET request for a file download, and checks the response code.
+    // Caller must read the response, then pass the connection to finishDownload, so that it
+    // can be reused for the next download from the same host.
+    // Downloads are HTTP/1.1 only, with parallelism coming from UpdateTask's scheduler. There is no
+    // HTTP/2 (java.net.http) engine: that needs Java 11 classes, which the 1.7-targeted build and
+    // the Pack200 step of the launcher's own .pack.lzma cannot carry. And the hosts that we download
+    // from (plain-HTTP classicube.net, S3) only speak HTTP/1.1 anyway.
+    public static HttpURLConnection openDownload(final String urlString)
+            throws IOException {
+        return openDownload(urlString, null);
+    }
+
+    // Like openDownload, but asks for just the given (inclusive) range of bytes. Servers that don't
+    // support ranges send the whole file instead, so caller must check for HTTP_PARTIAL.
+    public static HttpURLConnection openRangeDownload(final String urlString, final long firstByte,
+            final long lastByte)
+            throws IOException {
+        if (firstByte < 0 || lastByte < firstByte) {
+            throw new IllegalArgumentException("Invalid range: " + firstByte + "-" + lastByte);
+        }
+        return openDownload(urlString, "bytes=" + firstByte + "-" + lastByte);
+    }
+
+    private static HttpURLConnection openDownload(final String urlString, final String range)
+            throws IOException {
+        LogUtil.getLogger().log(Level.FINE, "GET {0} (download{1})",
+                new Object[]{urlString, (range == null ? "" : ", " + range)});
+        final HttpURLConnection connection = makeHttpConnection(urlString, null, null);
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        final int responseCode;
+        try {
+            responseCode = sendRequest(connection, null);
+        } catch (final IOException ex) {
+            connection.disconnect();
+            throw ex;
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK
+                && !(range != null && responseCode == HttpURLConnection.HTTP_PARTIAL)) {
+            releaseConnection(connection);
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new FileNotFoundException(urlString);
+            }
+            throw new StatusException(responseCode, "Server returned HTTP response code: " + responseCode
+                    + " for URL: " + urlString);
+        }
+        return connection;
+    }
+
+    // Releases a connection opened by openDownload. If the response was read completely, the
+    // connection is kept alive for reuse. Otherwise it's closed, since its state is unknown.
+    public static void finishDownload(final HttpURLConnection connection, final boolean completed) {
+        if (connection == null) {
+            throw new NullPointerException("connection");
+        }
+        RequestTimings.finish(connection);
+        if (!completed || "close".equalsIgnoreCase(connection.getHeaderField("Connection"))) {
+            connection.disconnect();
+        }
+    }
+
+    // Sends a HEAD request, to see whether a server is up (used to race download mirrors).
+    // Returns the response code, or -1 if the server could not be reached.
+    public static int probe(final String urlString) {
+        if (urlString == null) {
+            throw new NullPointerException("urlString");
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = makeHttpConnection(urlString, null, null);
+            connection.setRequestMethod("HEAD");
+            final int responseCode = sendRequest(connection, null);
+            releaseConnection(connection);
+            return responseCode;
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.FINE, "Probe of " + urlString + " failed", ex);
             if (connection != null) {
                 connection.disconnect();
             }
+            return -1;
+        }
+    }
+
+    // Reads and closes whatever is left of the response, so that the underlying connection can
+    // go back into the keep-alive cache. Calling disconnect() instead would close the socket.
+    private static void releaseConnection(final HttpURLConnection connection) {
+        RequestTimings.finish(connection);
+        try (final InputStream is = connection.getInputStream()) {
+            drain(is);
+        } catch (final IOException ex) {
+            // Error responses have their body in the error stream instead.
+            try (final InputStream es = connection.getErrorStream()) {
+                if (es != null) {
+                    drain(es);
+                }
+            } catch (final IOException ex2) {
+                // Connection is not reusable. The JDK closes it.
+            }
+        }
+    }
+
+    private static void drain(final InputStream is)
+            throws IOException {
+        final byte[] buffer = new byte[4096];
+        while (is.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    // Downloads and parses a JSON object using GET. The response is decoded and parsed as it
+    // arrives, without ever holding the whole document in memory as a string.
+    // Returns null and logs an error on failure.
+    public static JsonObject downloadJson(final String urlString) {
+        return downloadJson(urlString, false);
+    }
+
+    // Same as above, optionally with retries and hedging (see downloadString).
+    public static JsonObject downloadJson(final String urlString, final boolean retry) {
+        final HttpCache.Entry cached = HttpCache.lookup(urlString);
+        try {
+            if (cached != null && cached.isFresh()) {
+                HttpCache.countHit(urlString);
+                return parseJson(urlString, cached.body);
+            } else if (cached != null && cached.canServeStale()) {
+                HttpCache.countStaleHit(urlString);
+                revalidateInBackground(urlString, cached);
+                return parseJson(urlString, cached.body);
+            }
+            if (!retry) {
+                return requestJson(urlString, cached);
+            }
+            return sendWithRetries(urlString, new Callable<JsonObject>() {
+                @Override
+                public JsonObject call() throws IOException {
+                    return requestJson(urlString, cached);
+                }
+            });
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.SEVERE, "Error while downloading JSON from " + urlString, ex);
+            return null;
+        }
+    }
+
+    // Same as downloadJson, but shared between concurrent/repeated callers (see downloadStringShared).
+    // Callers must not modify the returned object.
+    public static JsonObject downloadJsonShared(final String urlString) {
+        return downloadJsonShared(urlString, false);
+    }
+
+    // Same as above, optionally with retries and hedging (see downloadString).
+    public static JsonObject downloadJsonShared(final String urlString, final boolean retry) {
+        try {
+            return sharedJson.get(urlString, new Callable<JsonObject>() {
+                @Override
+                public JsonObject call() {
+                    return downloadJson(urlString, retry);
+                }
+            });
+        } catch (final Exception ex) {
+            LogUtil.getLogger().log(Level.SEVERE, "Error while downloading JSON from " + urlString, ex);
+            return null;
+        }
+    }
+
+    // Drops all reusable responses, including those in HttpCache. Called whenever the session changes.
+    public static void forgetSharedResponses() {
+        sharedStrings.forgetAll();
+        sharedJson.forgetAll();
+        HttpCache.clear();
+    }
+
+    // Number of shareable requests that were actually sent.
+    public static long getSharedRequestsMade() {
+        return sharedStrings.getCallCount() + sharedJson.getCallCount();
+    }
+
+    // Number of requests avoided by sharing responses.
+    public static long getSharedRequestsSaved() {
+        return sharedStrings.getSavedCount() + sharedJson.getSavedCount();
+    }
+
+    private static JsonObject parseJson(final String urlString, final String json)
+            throws IOException {
+        try {
+            return JsonParser.object().from(json);
+        } catch (final JsonParserException ex) {
+            throw new IOException("Malformed JSON response from " + urlString, ex);
+        }
+    }
+
+    private static JsonObject requestJson(final String urlString, final HttpCache.Entry cached)
+            throws IOException {
+        LogUtil.getLogger().log(Level.FINE, "GET {0} (JSON)", urlString);
+        HttpURLConnection connection = null;
+        try {
+            connection = HttpUtil.makeHttpConnection(urlString, null, null);
+            connection.setRequestProperty("Accept", JSON);
+            connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+            if (cached != null) {
+                cached.addValidators(connection);
+            }
+            final int responseCode = sendRequest(connection, null);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                HttpCache.countRevalidation(urlString);
+                HttpCache.refresh(cached, connection);
+                return parseJson(urlString, cached.body);
+            }
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                final String response = readResponse(connection, connection.getErrorStream());
+                String errMsg = String.format("Server returned HTTP response code: %d for URL: %s with message:%n%s",
+                        responseCode, urlString, response);
+                throw new StatusException(responseCode, errMsg);
+            }
+            HttpCache.countMiss(urlString);
+            final Charset charset = getCharset(connection);
+            final JsonObject result;
+            final CapturingInputStream captured;
+            try (final InputStream is = decodeContent(connection,
+                    RequestTimings.countBytes(connection, connection.getInputStream()))) {
+                // A copy of the raw document is kept on the side (up to a limit) for HttpCache
+                captured = new CapturingInputStream(is, MAX_CAPTURE_SIZE);
+                if (charset == null || StandardCharsets.UTF_8.equals(charset)) {
+                    // Let the parser detect UTF-8/16/32 on its own (and use its fast UTF-8 reader)
+                    result = JsonParser.object().from(captured);
+                } else {
+                    result = JsonParser.object().from(new InputStreamReader(captured, charset));
+                }
+            }
+            final byte[] capturedBytes = captured.getCapturedBytes();
+            if (responseCode == HttpURLConnection.HTTP_OK && capturedBytes != null) {
+                HttpCache.store(urlString, connection,
+                        new String(capturedBytes, charset == null ? StandardCharsets.UTF_8 : charset));
+            }
+            return result;
+
+        } catch (final JsonParserException ex) {
+            throw new IOException("Malformed JSON response from " + urlString, ex);
+
+        } finally {
+            if (connection != null) {
+                releaseConnection(connection);
+            }
+        }
+    }
+
+    // Reads the whole response (decompressed, if needed) as text. Uses charset from the
+    // Content-Type header, or UTF-8 if none was given. Closes the stream.
+    private static String readResponse(final HttpURLConnection connection, final InputStream is)
+            throws IOException {
+        return readResponse(connection, is, null);
+    }
+
+    // forcedCharset (if not null) overrides the charset given by the server.
+    private static String readResponse(final HttpURLConnection connection, final InputStream is,
+            final Charset forcedCharset)
+            throws IOException {
+        if (is == null) {
+            return "";
+        }
+        Charset charset = (forcedCharset != null ? forcedCharset : getCharset(connection));
+        if (charset == null) {
+            charset = StandardCharsets.UTF_8;
+        }
+        final StringBuilder response = new StringBuilder();
+        final InputStream countedStream = RequestTimings.countBytes(connection, is);
+        try (final Reader reader = new InputStreamReader(decodeContent(connection, countedStream), charset)) {
+            final char[] buffer = new char[8192];
+            int len;
+            while ((len = reader.read(buffer)) != -1) {
+                response.append(buffer, 0, len);
+            }
+        }
+        return response.toString();
+    }
+
+    // Wraps the response stream in a decompressor, according to its Content-Encoding.
+    private static InputStream decodeContent(final HttpURLConnection connection, final InputStream is)
+            throws IOException {
+        final String encoding = connection.getContentEncoding();
+        if (encoding == null) {
+            return is;
+        }
+        switch (encoding.trim().toLowerCase()) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(is);
+            case "deflate":
+                // Supposed to be zlib-wrapped, but some servers send raw deflate data instead.
+                final BufferedInputStream buffered = new BufferedInputStream(is);
+                buffered.mark(2);
+                final int cmf = buffered.read();
+                final int flg = buffered.read();
+                buffered.reset();
+                final boolean zlibWrapped = (cmf & 0x0F) == 8 && flg != -1 && ((cmf << 8) | flg) % 31 == 0;
+                return new InflaterInputStream(buffered, new Inflater(!zlibWrapped));
+            default:
+                return is;
+        }
+    }
+
+    // Gets charset parameter of the Content-Type header. Returns null if missing or unsupported.
+    private static Charset getCharset(final HttpURLConnection connection) {
+        final String contentType = connection.getContentType();
+        if (contentType == null) {
+            return null;
+        }
+        for (final String param : contentType.split(";")) {
+            final String[] parts = param.trim().split("=", 2);
+            if (parts.length == 2 && parts[0].trim().equalsIgnoreCase("charset")) {
+                try {
+                    return Charset.forName(parts[1].trim().replace("\"", ""));
+                } catch (final IllegalArgumentException ex) {
+                    LogUtil.getLogger().log(Level.WARNING, "Unsupported response charset: {0}", parts[1]);
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Keeps a copy of everything read through it, unless that exceeds given limit.
+    private final static class CapturingInputStream extends FilterInputStream {
+
+        private final int limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CapturingInputStream(final InputStream in, final int limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                capture(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                capture(buffer, offset, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // Skipped data can't be captured.
+            copy = null;
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void capture(final byte[] buffer, final int offset, final int length) {
+            if (copy != null) {
+                if (copy.size() + length > limit) {
+                    copy = null;
+                } else {
+                    copy.write(buffer, offset, length);
+                }
+            }
+        }
+
+        // Returns everything read so far, or null if that was too much (or if anything was skipped).
+        byte[] getCapturedBytes() {
+            return (copy == null ? null : copy.toByteArray());
+        }
+    }
+
+    // Thrown when the server responds with an error status (4xx or 5xx).
+    public final static class StatusException extends IOException {
+
+        public final int responseCode;
+
+        StatusException(final int responseCode, final String message) {
+            super(message);
+            this.responseCode = responseCode;
+        }
+    }
+
+    public final static class ConditionalResponse {
+
+        // Response body, or null if server said that it has not been modified (HTTP 304)
+        public final String body;
+        // Validators to send with the next request (may be null)
+        public final String etag, lastModified;
+
+        ConditionalResponse(final String body, final String etag, final String lastModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isNotModified() {
+            return body == null;
         }
     }
 
@@ -0,0 +1,142 @@
+package net.classicube.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import net.classicube.shared.ChecksumUtil;
+
+// Remembers the last-seen copy of each remote index (body, ETag, Last-Modified, SHA1 of body),
+// along with the time when all local files were last fully checked against them.
+// Lets UpdateTask fetch indexes with conditional GETs, and skip checking local files altogether
+// when nothing has changed on the server. Newly fetched copies are only persisted once a full
+// check against them succeeds (see markFullCheckDone), so a failed update is never skipped later.
+final class IndexCache {
+
+    private static final String LAST_FULL_CHECK_KEY = "lastFullCheck",
+            BODY_SUFFIX = ".body",
+            ETAG_SUFFIX = ".etag",
+            LAST_MODIFIED_SUFFIX = ".lastModified",
+            SHA1_SUFFIX = ".sha1";
+    private final File dbFile;
+    private final Properties saved = new Properties();
+    private final Properties pending = new Properties();
+    private final Set<String> unchangedUrls = new HashSet<>();
+
+    private IndexCache(final File dbFile) {
+        this.dbFile = dbFile;
+    }
+
+    // Loads the cache from given file. A missing or unreadable file results in an empty cache.
+    public static IndexCache load(final File dbFile) {
+        if (dbFile == null) {
+            throw new NullPointerException("dbFile");
+        }
+        final IndexCache cache = new IndexCache(dbFile);
+        if (dbFile.exists()) {
+            try (final InputStream is = new FileInputStream(dbFile)) {
+                cache.saved.load(is);
+            } catch (final IOException | IllegalArgumentException ex) {
+                LogUtil.getLogger().log(Level.WARNING, "Error loading index cache. Will re-download indexes.", ex);
+                cache.saved.clear();
+            }
+        }
+        return cache;
+    }
+
+    // Downloads given index, unless the copy we have is still current.
+    // Returns the index contents, or null on failure.
+    public String fetch(final String url) {
+        return fetch(url, false);
+    }
+
+    // Same as above. Binary indexes are returned with one char per byte (see
+    // HttpUtil.downloadConditional), and can be turned back into bytes with ISO-8859-1.
+    public String fetch(final String url, final boolean binary) {
+        if (url == null) {
+            throw new NullPointerException("url");
+        }
+        final String oldBody, oldEtag, oldLastModified, oldSha1;
+        synchronized (this) {
+            oldBody = saved.getProperty(url + BODY_SUFFIX);
+            oldSha1 = saved.getProperty(url + SHA1_SUFFIX);
+            // Validators are useless if we don't have the body that goes with them.
+            oldEtag = (oldBody == null ? null : saved.getProperty(url + ETAG_SUFFIX));
+            oldLastModified = (oldBody == null ? null : saved.getProperty(url + LAST_MODIFIED_SUFFIX));
+        }
+
+        final HttpUtil.ConditionalResponse response = HttpUtil.downloadConditional(url, oldEtag, oldLastModified, binary);
+        if (response == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (response.isNotModified()) {
+                LogUtil.getLogger().log(Level.FINE, "{0} has not been modified", url);
+                unchangedUrls.add(url);
+                return oldBody;
+            }
+            final String sha1 = ChecksumUtil.toHexString(
+                    ChecksumUtil.createSha1().digest(response.body.getBytes(StandardCharsets.UTF_8)));
+            if (sha1.equals(oldSha1)) {
+                // Server does not support validators (or they changed), but contents are the same.
+                unchangedUrls.add(url);
+            }
+            pending.setProperty(url + BODY_SUFFIX, response.body);
+            pending.setProperty(url + SHA1_SUFFIX, sha1);
+            if (response.etag != null) {
+                pending.setProperty(url + ETAG_SUFFIX, response.etag);
+            }
+            if (response.lastModified != null) {
+                pending.setProperty(url + LAST_MODIFIED_SUFFIX, response.lastModified);
+            }
+            return response.body;
+        }
+    }
+
+    // Whether the last fetch of given index found it unchanged since the last full check.
+    public synchronized boolean isUnchanged(final String url) {
+        return unchangedUrls.contains(url);
+    }
+
+    // Time (in milliseconds since epoch) of the last successful full check, or 0 if never.
+    public synchronized long getLastFullCheck() {
+        try {
+            return Long.parseLong(saved.getProperty(LAST_FULL_CHECK_KEY, "0"));
+        } catch (final NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    // Records that all local files were just checked against the fetched indexes, and saves
+    // those indexes (and their validators) to disk.
+    public synchronized void markFullCheckDone() {
+        for (final String key : pending.stringPropertyNames()) {
+            if (key.endsWith(BODY_SUFFIX)) {
+                // Drop old validators, in case the new response did not include some of them.
+                final String url = key.substring(0, key.length() - BODY_SUFFIX.length());
+                saved.remove(url + ETAG_SUFFIX);
+                saved.remove(url + LAST_MODIFIED_SUFFIX);
+            }
+        }
+        saved.putAll(pending);
+        pending.clear();
+        saved.setProperty(LAST_FULL_CHECK_KEY, Long.toString(System.currentTimeMillis()));
+        try {
+            final File tempFile = File.createTempFile(dbFile.getName(), ".tmp", dbFile.getParentFile());
+            try (final OutputStream os = new FileOutputStream(tempFile)) {
+                saved.store(os, "ClassiCube launcher index cache");
+            }
+            PathUtil.replaceFile(tempFile, dbFile);
+        } catch (final IOException ex) {
+            LogUtil.getLogger().log(Level.WARNING, "Error saving index cache", ex);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package net.classicube.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Level;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import net.classicube.shared.ChecksumUtil;
+
+// Applies per-entry jar patches. A patch is itself a zip file that contains:
+//  - every entry that was added or changed between the old and the new jar (including
+//    the new manifest and signature files), and
+//  - an optional REMOVED_LIST_NAME entry: names of entries to drop, one per line.
+// The patched jar keeps the old jar's entry order, with new entries appended at the end.
+// Callers are expected to verify the result (e.g. by manifest hash) before deploying it.
+final class JarPatcher {
+
+    public static final String REMOVED_LIST_NAME = "META-INF/PATCH-REMOVED.LIST";
+
+    // Name of the patch (on the server) that turns jar with given manifest hash into another.
+    public static String getPatchName(final String jarName, final String fromHash, final String toHash) {
+        if (jarName == null) {
+            throw new NullPointerException("jarName");
+        }
+        if (fromHash == null) {
+            throw new NullPointerException("fromHash");
+        }
+        if (toHash == null) {
+            throw new NullPointerException("toHash");
+        }
+        return jarName + "." + fromHash.toLowerCase() + "-" + toHash.toLowerCase() + ".patch.lzma";
+    }
+
+    // Downloads the patch at patchUrl (using given downloader), applies it to baseJar, and makes
+    // sure that the result (written to outputJar) has the expected manifest hash.
+    // Returns false if there is no such patch, if it can't be downloaded or applied, or if the
+    // result does not match: in all those cases, the caller should download the full file.
+    public static boolean tryPatch(final String patchUrl, final File baseJar, final File outputJar,
+            final String expectedHash, final PatchDownloader downloader)
+            throws InterruptedException {
+        if (patchUrl == null) {
+            throw new NullPointerException("patchUrl");
+        }
+        if (baseJar == null) {
+            throw new NullPointerException("baseJar");
+        }
+        if (outputJar == null) {
+            throw new NullPointerException("outputJar");
+        }
+        if (expectedHash == null) {
+            throw new NullPointerException("expectedHash");
+        }
+        if (downloader == null) {
+            throw new NullPointerException("downloader");
+        }
+        File patchFile = null;
+        try {
+            patchFile = File.createTempFile(outputJar.getName(), ".patch", outputJar.getParentFile());
+            downloader.download(patchUrl, patchFile);
+            apply(baseJar, patchFile, outputJar);
+            final String patchedHash = ChecksumUtil.computeManifestHash(outputJar);
+            if (!patchedHash.equalsIgnoreCase(expectedHash)) {
+                LogUtil.getLogger().log(Level.WARNING,
+                        "Patched {0} does not match remote index ({1} vs {2}). Will download the full file.",
+                        new Object[]{baseJar.getName(), patchedHash, expectedHash});
+                return false;
+            }
+            return true;
+        } catch (final FileNotFoundException ex) {
+            LogUtil.getLogger().log(Level.FINE, "No patch available at {0}", patchUrl);
+            return false;
+        } catch (final IOException | RuntimeException ex) {
+            LogUtil.getLogger().log(Level.WARNING,
+                    "Error patching " + baseJar.getName() + ". Will download the full file.", ex);
+            return false;
+        } finally {
+            if (patchFile != null && patchFile.exists() && !patchFile.delete()) {
+                patchFile.deleteOnExit();
+            }
+        }
+    }
+
+    // Writes baseJar with patch applied to outputJar.
+    public static void apply(final File baseJar, final File patch, final File outputJar)
+            throws IOException {
+        if (baseJar == null) {
+            throw new NullPointerException("baseJar");
+        }
+        if (patch == null) {
+            throw new NullPointerException("patch");
+        }
+        if (outputJar == null) {
+            throw new NullPointerException("outputJar");
+        }
+        try (final ZipFile baseZip = new ZipFile(baseJar);
+                final ZipFile patchZip = new ZipFile(patch);
+                final JarOutputStream out = new JarOutputStream(new FileOutputStream(outputJar))) {
+            final Set<String> removedNames = readRemovedList(patchZip);
+            final Set<String> writtenNames = new HashSet<>();
+            final byte[] ioBuffer = new byte[64 * 1024];
+
+            // Old entries, in their original order (replaced by patched versions where needed)
+            for (final ZipEntry baseEntry : Collections.list(baseZip.entries())) {
+                final String name = baseEntry.getName();
+                if (removedNames.contains(name)) {
+                    continue;
+                }
+                final ZipEntry patchEntry = patchZip.getEntry(name);
+                if (patchEntry != null) {
+                    copyEntry(patchZip, patchEntry, out, ioBuffer);
+                } else {
+                    copyEntry(baseZip, baseEntry, out, ioBuffer);
+                }
+                writtenNames.add(name);
+            }
+
+            // Entries that only exist in the new jar
+            for (final ZipEntry patchEntry : Collections.list(patchZip.entries())) {
+                final String name = patchEntry.getName();
+                if (!writtenNames.contains(name) && !REMOVED_LIST_NAME.equals(name)) {
+                    copyEntry(patchZip, patchEntry, out, ioBuffer);
+                }
+            }
+        }
+    }
+
+    private static Set<String> readRemovedList(final ZipFile patchZip)
+            throws IOException {
+        final Set<String> removedNames = new HashSet<>();
+        final ZipEntry listEntry = patchZip.getEntry(REMOVED_LIST_NAME);
+        if (listEntry != null) {
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    patchZip.getInputStream(listEntry), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty()) {
+                        removedNames.add(line);
+                    }
+                }
+            }
+        }
+        return removedNames;
+    }
+
+    private static void copyEntry(final ZipFile source, final ZipEntry entry, final JarOutputStream out,
+            final byte[] ioBuffer)
+            throws IOException {
+        final ZipEntry newEntry = new ZipEntry(entry.getName());
+        newEntry.setTime(entry.getTime());
+        out.putNextEntry(newEntry);
+        try (final InputStream in = source.getInputStream(entry)) {
+            copy(in, out, ioBuffer);
+        }
+        out.closeEntry();
+    }
+
+    private static void copy(final InputStream in, final OutputStream out, final byte[] ioBuffer)
+            throws IOException {
+        int len;
+        while ((len = in.read(ioBuffer)) != -1) {
+            out.write(ioBuffer, 0, len);
+        }
+    }
+
+    // Fetches a patch (decompressing it, if needed) into given file.
+    // Throws FileNotFoundException if the server has no such patch.
+    public interface PatchDownloader {
+
+        void download(String patchUrl, File patchFile) throws IOException, InterruptedException;
+    }
+
+    private JarPatcher() {
+    }
+}
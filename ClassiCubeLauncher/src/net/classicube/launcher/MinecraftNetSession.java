@@ -274,7 +274,7 @@ final class MinecraftNetSession extends GameSession {
         @Override
         protected ServerListEntry[] doInBackground() throws Exception {
             LogUtil.getLogger().log(Level.FINE, "MinecraftNetGetServerListWorker");
-            final String serverListString = HttpUtil.downloadString(SERVER_LIST_URL);
+            final String serverListString = HttpUtil.downloadStringShared(SERVER_LIST_URL, true);
 
             if (serverListString == null) {
                 throw new RuntimeException("Could not fetch a list of servers from Minecraft.net");
@@ -0,0 +1,149 @@
+package net.classicube.launcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+// An ordered list of interchangeable base URLs (mirrors) that a set of files can be downloaded
+// from. Extra mirrors (e.g. a LAN mirror) are configured with a system property, as a
+// comma-separated list of base URLs, and are tried before the built-in default.
+// On first use, all mirrors are raced with a small request, and the fastest healthy one is
+// picked. If a download from it fails, the next healthy mirror (in list order) takes over.
+// Files are always verified against the remote index, so mirrors don't need to be trusted.
+final class MirrorSet {
+
+    private static final long PROBE_TIMEOUT_MILLIS = 3000;
+    private final String name;
+    private final List<String> mirrors;
+    private final String probePath;
+    private final Set<String> failedMirrors = new HashSet<>();
+    private String currentMirror;
+
+    // propertyName: system property that lists extra mirrors
+    // probePath: small file (relative to each mirror) used to race mirrors; an empty path
+    //            just checks that the mirror responds at all.
+    public MirrorSet(final String name, final String propertyName, final String defaultUrl, final String probePath) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+        if (propertyName == null) {
+            throw new NullPointerException("propertyName");
+        }
+        if (defaultUrl == null) {
+            throw new NullPointerException("defaultUrl");
+        }
+        if (probePath == null) {
+            throw new NullPointerException("probePath");
+        }
+        this.name = name;
+        this.probePath = probePath;
+        final List<String> urls = new ArrayList<>();
+        final String configured = System.getProperty(propertyName);
+        if (configured != null) {
+            for (String url : configured.split(",")) {
+                url = url.trim();
+                if (!url.isEmpty()) {
+                    urls.add(url.endsWith("/") ? url : url + "/");
+                }
+            }
+        }
+        if (!urls.contains(defaultUrl)) {
+            urls.add(defaultUrl);
+        }
+        this.mirrors = Collections.unmodifiableList(urls);
+    }
+
+    // Returns base URL of the mirror to use. Mirrors are raced the first time this is called.
+    public synchronized String getCurrent() {
+        if (currentMirror == null) {
+            currentMirror = (mirrors.size() == 1 ? mirrors.get(0) : pickFastest());
+        }
+        return currentMirror;
+    }
+
+    // Reports that a download from given mirror failed. Switches to the next healthy mirror.
+    // Returns false if there are no other mirrors left to try.
+    public synchronized boolean failOver(final String failedMirror) {
+        if (failedMirror == null) {
+            throw new NullPointerException("failedMirror");
+        }
+        failedMirrors.add(failedMirror);
+        if (!failedMirror.equals(currentMirror)) {
+            // Another thread already switched mirrors.
+            return !failedMirrors.contains(currentMirror);
+        }
+        for (final String mirror : mirrors) {
+            if (!failedMirrors.contains(mirror)) {
+                LogUtil.getLogger().log(Level.WARNING, "Switching {0} mirror from {1} to {2}",
+                        new Object[]{name, failedMirror, mirror});
+                currentMirror = mirror;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The probe file must be there. Without one, any response that's not a server error will do
+    // (e.g. a bucket that does not allow listing its contents will respond with 403).
+    private boolean isHealthy(final int responseCode) {
+        if (probePath.isEmpty()) {
+            return responseCode > 0 && responseCode < 500;
+        }
+        return responseCode == 200;
+    }
+
+    // Sends the probe request to all mirrors at once, and returns the first to respond properly.
+    // Falls back to the first mirror in the list if none respond in time.
+    private String pickFastest() {
+        final ExecutorService executor = Executors.newFixedThreadPool(mirrors.size(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "MirrorProbe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            final CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+            for (final String mirror : mirrors) {
+                completionService.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return (isHealthy(HttpUtil.probe(mirror + probePath)) ? mirror : null);
+                    }
+                });
+            }
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS);
+            for (int i = 0; i < mirrors.size(); i++) {
+                final Future<String> result = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (result == null) {
+                    break;
+                }
+                final String mirror = result.get();
+                if (mirror != null) {
+                    LogUtil.getLogger().log(Level.INFO, "Using {0} mirror {1}", new Object[]{name, mirror});
+                    return mirror;
+                }
+            }
+        } catch (final InterruptedException | ExecutionException ex) {
+            LogUtil.getLogger().log(Level.WARNING, "Error picking a " + name + " mirror", ex);
+        } finally {
+            executor.shutdownNow();
+        }
+        LogUtil.getLogger().log(Level.WARNING, "No {0} mirror responded in time. Using {1}",
+                new Object[]{name, mirrors.get(0)});
+        return mirrors.get(0);
+    }
+}
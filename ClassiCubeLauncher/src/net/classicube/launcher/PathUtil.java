@@ -23,7 +23,9 @@ final class PathUtil {
             CLIENT_LOG_FILE_NAME = "client.log",
             CLIENT_LOG_OLD_FILE_NAME = "client.old.log",
             OPTIONS_FILE_NAME = "options.txt",
-            SELF_UPDATER_LOG_FILE_NAME = "selfupdater.log";
+            SELF_UPDATER_LOG_FILE_NAME = "selfupdater.log",
+            FINGERPRINTS_FILE_NAME = "fingerprints.txt",
+            INDEX_CACHE_FILE_NAME = "index-cache.properties";
     private static File clientPath;
 
     // Find client's directory. If it does not exist, create it.
@@ -42,7 +44,7 @@ final class PathUtil {
     }
 
     // Safely replace contents of destFile with sourceFile.
-    public synchronized static void replaceFile(final File sourceFile, final File destFile)
+    public static void replaceFile(final File sourceFile, final File destFile)
             throws IOException {
         if (sourceFile == null) {
             throw new NullPointerException("sourceFile");
@@ -0,0 +1,250 @@
+package net.classicube.launcher;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+// Records how long each HTTP request spends in each phase: connecting (DNS lookup, TCP connect
+// and TLS handshake together -- HttpURLConnection does not separate them, and a separate lookup
+// just to time it would add a blocking call to every request), waiting for the first byte of the
+// response, and transferring the response. Requests slower than a threshold
+// (-Dclassicube.http.slowRequestMillis, default 2000) get a log line of their own, and a per-host
+// summary is logged when the launcher exits.
+final class RequestTimings {
+
+    private static final long NANOS_PER_MILLI = 1000L * 1000;
+    private static final long SLOW_REQUEST_NANOS
+            = Long.getLong("classicube.http.slowRequestMillis", 2000) * NANOS_PER_MILLI;
+    private static final Map<HttpURLConnection, Timing> inProgress = new ConcurrentHashMap<>();
+    private static final Map<String, HostStats> hostStats = new HashMap<>();
+    private static boolean shutdownHookInstalled, summaryLogged;
+
+    // Starts timing a request. Phases are marked on the returned object as they complete.
+    public static Timing start(final String method, final URL url) {
+        if (method == null) {
+            throw new NullPointerException("method");
+        }
+        if (url == null) {
+            throw new NullPointerException("url");
+        }
+        installShutdownHook();
+        return new Timing(method, url.toString(), url.getHost().toLowerCase());
+    }
+
+    // Associates a timing with its connection, until the response has been read (see finish).
+    public static void attach(final HttpURLConnection connection, final Timing timing) {
+        inProgress.put(connection, timing);
+    }
+
+    // Wraps a response stream, so that bytes read through it count towards the response size.
+    public static InputStream countBytes(final HttpURLConnection connection, final InputStream stream) {
+        final Timing timing = inProgress.get(connection);
+        if (timing == null || stream == null) {
+            return stream;
+        }
+        return new FilterInputStream(stream) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1) {
+                    timing.bytes++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                final int count = super.read(buffer, offset, length);
+                if (count > 0) {
+                    timing.bytes += count;
+                }
+                return count;
+            }
+        };
+    }
+
+    // Finishes timing of a request whose response has been read (or abandoned).
+    // If bytes were not counted while reading, the Content-Length header is used instead.
+    public static void finish(final HttpURLConnection connection) {
+        final Timing timing = inProgress.remove(connection);
+        if (timing != null) {
+            if (timing.bytes == 0) {
+                timing.bytes = connection.getContentLengthLong();
+            }
+            timing.transferDone();
+            record(timing);
+        }
+    }
+
+    // Records a request that failed before a response arrived.
+    public static void fail(final Timing timing) {
+        if (timing == null) {
+            throw new NullPointerException("timing");
+        }
+        timing.failed = true;
+        record(timing);
+    }
+
+    // Records a request made outside of HttpUtil, for which only the total time is known.
+    public static void recordTotal(final String method, final String url, final int status, final long bytes,
+            final long totalNanos) {
+        final Timing timing;
+        try {
+            timing = new Timing(method, url, new URL(url).getHost().toLowerCase());
+        } catch (final IOException ex) {
+            return;
+        }
+        timing.status = status;
+        timing.bytes = bytes;
+        timing.totalNanos = totalNanos;
+        timing.failed = (status < 0);
+        record(timing);
+    }
+
+    private static synchronized void record(final Timing timing) {
+        if (timing.totalNanos >= SLOW_REQUEST_NANOS) {
+            LogUtil.getLogger().log(Level.INFO, "Slow HTTP request: {0}", timing);
+        } else {
+            LogUtil.getLogger().log(Level.FINE, "HTTP request: {0}", timing);
+        }
+        HostStats stats = hostStats.get(timing.host);
+        if (stats == null) {
+            stats = new HostStats();
+            hostStats.put(timing.host, stats);
+        }
+        stats.add(timing);
+    }
+
+    // Logs per-host totals, and how many GETs were saved by sharing responses.
+    // Only does anything the first time it's called.
+    public static synchronized void logSummary() {
+        if (summaryLogged) {
+            return;
+        }
+        summaryLogged = true;
+        for (final Map.Entry<String, HostStats> entry : hostStats.entrySet()) {
+            LogUtil.getLogger().log(Level.INFO, "HTTP summary for {0}: {1}",
+                    new Object[]{entry.getKey(), entry.getValue()});
+        }
+        if (!hostStats.isEmpty()) {
+            LogUtil.getLogger().log(Level.FINE, "Shared GETs: {0} sent, {1} saved",
+                    new Object[]{HttpUtil.getSharedRequestsMade(), HttpUtil.getSharedRequestsSaved()});
+        }
+    }
+
+    // The summary is logged at exit, unless the launcher logs it itself before calling System.exit
+    // (logging from a shutdown hook is not reliable, since the log handlers may be closed first).
+    private static synchronized void installShutdownHook() {
+        if (!shutdownHookInstalled) {
+            shutdownHookInstalled = true;
+            Runtime.getRuntime().addShutdownHook(new Thread("RequestTimingsSummary") {
+                @Override
+                public void run() {
+                    logSummary();
+                }
+            });
+        }
+    }
+
+    private static String formatMillis(final long nanos) {
+        return (nanos < 0 ? "?" : Long.toString(nanos / NANOS_PER_MILLI) + "ms");
+    }
+
+    public final static class Timing {
+
+        final String method, url, host;
+        private final long startNanos;
+        private long phaseStartNanos;
+        long connectNanos = -1, firstByteNanos = -1, transferNanos = -1, totalNanos = -1;
+        int status = -1;
+        long bytes;
+        boolean failed;
+
+        Timing(final String method, final String url, final String host) {
+            this.method = method;
+            this.url = url;
+            this.host = host;
+            this.startNanos = System.nanoTime();
+            this.phaseStartNanos = startNanos;
+        }
+
+        private long lap() {
+            final long now = System.nanoTime();
+            final long elapsed = now - phaseStartNanos;
+            phaseStartNanos = now;
+            totalNanos = now - startNanos;
+            return elapsed;
+        }
+
+        public void connectDone() {
+            connectNanos = lap();
+        }
+
+        public void firstByte(final int status) {
+            this.status = status;
+            firstByteNanos = lap();
+        }
+
+        void transferDone() {
+            transferNanos = lap();
+        }
+
+        @Override
+        public String toString() {
+            return "method=" + method
+                    + " host=" + host
+                    + " status=" + (status < 0 ? "?" : Integer.toString(status))
+                    + " connect=" + formatMillis(connectNanos)
+                    + " ttfb=" + formatMillis(firstByteNanos)
+                    + " transfer=" + formatMillis(transferNanos)
+                    + " total=" + formatMillis(totalNanos)
+                    + " bytes=" + (bytes < 0 ? "?" : Long.toString(bytes))
+                    + (failed ? " failed=true" : "")
+                    + " url=" + url;
+        }
+    }
+
+    private final static class HostStats {
+
+        int requests, failures, slowRequests;
+        long connectNanos, firstByteNanos, transferNanos, totalNanos, maxTotalNanos, bytes;
+
+        void add(final Timing timing) {
+            requests++;
+            if (timing.failed) {
+                failures++;
+            }
+            if (timing.totalNanos >= SLOW_REQUEST_NANOS) {
+                slowRequests++;
+            }
+            connectNanos += Math.max(0, timing.connectNanos);
+            firstByteNanos += Math.max(0, timing.firstByteNanos);
+            transferNanos += Math.max(0, timing.transferNanos);
+            totalNanos += Math.max(0, timing.totalNanos);
+            maxTotalNanos = Math.max(maxTotalNanos, timing.totalNanos);
+            bytes += Math.max(0, timing.bytes);
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + requests
+                    + " failed=" + failures
+                    + " slow=" + slowRequests
+                    + " avgConnect=" + formatMillis(connectNanos / requests)
+                    + " avgTtfb=" + formatMillis(firstByteNanos / requests)
+                    + " avgTransfer=" + formatMillis(transferNanos / requests)
+                    + " avgTotal=" + formatMillis(totalNanos / requests)
+                    + " maxTotal=" + formatMillis(maxTotalNanos)
+                    + " bytes=" + bytes;
+        }
+    }
+
+    private RequestTimings() {
+    }
+}
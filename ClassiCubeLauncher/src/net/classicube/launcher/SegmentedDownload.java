@@ -0,0 +1,390 @@
+package net.classicube.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import net.classicube.shared.ChecksumUtil;
+
+// Downloads a large file over several connections at once. Each connection fetches one byte range
+// ("segment") at a time, and writes it straight into place with positional FileChannel writes.
+// All connections start right away; the first response shows whether the server supports ranges.
+// Servers that don't support ranges send the whole file over one connection instead.
+// If the remote index lists SHA1 hashes of fixed-size chunks of the file, segments follow chunk
+// boundaries, and each one is checked as soon as it arrives. A corrupted segment is re-fetched
+// if the server supports ranges; otherwise the whole download fails.
+// The file can be read back (by the unpacker) while it downloads: see start.
+final class SegmentedDownload {
+
+    private static final int MAX_CONNECTIONS = 4;
+    private static final long MIN_SEGMENT_SIZE = 512 * 1024;
+    private static final int MAX_SEGMENT_ATTEMPTS = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Whether the server supports ranges: not known until the first response arrives
+    private static final int RANGES_UNKNOWN = 0,
+            RANGES_SUPPORTED = 1,
+            RANGES_UNSUPPORTED = 2;
+    private static ExecutorService segmentExecutor;
+    private final String url;
+    private final long size;
+    private final long segmentSize;
+    private final int segmentCount;
+    private final List<String> segmentHashes;
+    private final ProgressListener listener;
+    private final AtomicInteger nextSegment = new AtomicInteger(),
+            rangeSupport = new AtomicInteger(RANGES_UNKNOWN);
+    private final List<Future<Void>> workers = new ArrayList<>();
+    private FileChannel channel;
+    // Guarded by "this": which segments are done, how many bytes (from the start) are all done,
+    // and the error that stopped the download, if any.
+    private boolean[] segmentsDone;
+    private long contiguousBytes;
+    private IOException failure;
+
+    // chunkHashes: SHA1 (hex) of each chunkSize-byte piece of the file, or null if not known.
+    public SegmentedDownload(final String url, final long size, final long chunkSize, final List<String> chunkHashes,
+            final ProgressListener listener) {
+        if (url == null) {
+            throw new NullPointerException("url");
+        }
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("size");
+        }
+        this.url = url;
+        this.size = size;
+        this.listener = listener;
+        if (chunkHashes != null && chunkSize > 0 && chunkHashes.size() == getSegmentCount(size, chunkSize)) {
+            this.segmentSize = chunkSize;
+            this.segmentHashes = chunkHashes;
+        } else {
+            this.segmentSize = Math.max(MIN_SEGMENT_SIZE, (size + MAX_CONNECTIONS - 1) / MAX_CONNECTIONS);
+            this.segmentHashes = null;
+        }
+        this.segmentCount = getSegmentCount(size, segmentSize);
+    }
+
+    // Whether a file of given size is big enough to be worth splitting up.
+    public static boolean isWorthSplitting(final long size) {
+        return size >= 2 * MIN_SEGMENT_SIZE;
+    }
+
+    // Starts downloading into given file (overwriting it), and returns a stream that reads the file
+    // from the start, as fast as segments complete in order. Reading fails if the download does.
+    // Closing the stream stops the download (if still in progress). Can only be called once.
+    public synchronized InputStream start(final File file)
+            throws IOException {
+        if (file == null) {
+            throw new NullPointerException("file");
+        }
+        if (channel != null) {
+            throw new IllegalStateException("Download already started");
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segmentsDone = new boolean[segmentCount];
+        for (int i = 0; i < Math.min(MAX_CONNECTIONS, segmentCount); i++) {
+            workers.add(getSegmentExecutor().submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        int segment;
+                        while ((segment = nextSegment.getAndIncrement()) < segmentCount) {
+                            downloadSegment(segment);
+                        }
+                    } catch (final IOException ex) {
+                        fail(ex);
+                    } catch (final Throwable ex) {
+                        // Even an Error (e.g. OutOfMemoryError) must wake up the reader.
+                        fail(new IOException("Error downloading " + url, ex));
+                        if (ex instanceof Error) {
+                            throw (Error) ex;
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        return new InOrderStream();
+    }
+
+    // Stops all workers (and keeps remaining segments from getting picked up).
+    private void stop() {
+        nextSegment.set(segmentCount);
+        final List<Future<Void>> workersToStop;
+        synchronized (this) {
+            workersToStop = new ArrayList<>(workers);
+        }
+        for (final Future<Void> worker : workersToStop) {
+            worker.cancel(true);
+        }
+    }
+
+    private synchronized void fail(final IOException ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+        nextSegment.set(segmentCount);
+        notifyAll();
+    }
+
+    private synchronized void markDone(final int segment) {
+        segmentsDone[segment] = true;
+        while (contiguousBytes < size && segmentsDone[(int) (contiguousBytes / segmentSize)]) {
+            contiguousBytes += getSegmentLength((int) (contiguousBytes / segmentSize));
+        }
+        notifyAll();
+    }
+
+    private void downloadSegment(final int segment)
+            throws IOException {
+        final long start = segment * segmentSize;
+        for (int attempt = 1;; attempt++) {
+            final HttpURLConnection connection
+                    = HttpUtil.openRangeDownload(url, start, start + getSegmentLength(segment) - 1);
+            boolean completed = false;
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    downloadWholeFile(connection);
+                    completed = true;
+                    return;
+                }
+                if (!rangeSupport.compareAndSet(RANGES_UNKNOWN, RANGES_SUPPORTED)
+                        && rangeSupport.get() != RANGES_SUPPORTED) {
+                    // Another connection is already getting the whole file.
+                    return;
+                }
+                checkContentRange(connection, start);
+                try (final InputStream in = connection.getInputStream()) {
+                    copySegment(in, segment);
+                }
+                completed = true;
+                markDone(segment);
+                return;
+            } catch (final CorruptSegmentException ex) {
+                if (attempt >= MAX_SEGMENT_ATTEMPTS) {
+                    throw ex;
+                }
+                LogUtil.getLogger().log(Level.WARNING, "{0} Re-downloading it.", ex.getMessage());
+            } finally {
+                HttpUtil.finishDownload(connection, completed);
+            }
+        }
+    }
+
+    // Handles a 200 response to a range request. If this is the first response, ranges are not
+    // supported: the whole file is taken from this one stream, and other connections give up.
+    private void downloadWholeFile(final HttpURLConnection connection)
+            throws IOException {
+        if (!rangeSupport.compareAndSet(RANGES_UNKNOWN, RANGES_UNSUPPORTED)) {
+            if (rangeSupport.get() == RANGES_SUPPORTED) {
+                throw new IOException("Server stopped honoring ranges for " + url);
+            }
+            // Another connection is already getting the whole file.
+            return;
+        }
+        LogUtil.getLogger().log(Level.INFO,
+                "Server does not support ranges for {0}. Downloading it in one piece.", url);
+        nextSegment.set(segmentCount);
+        try (final InputStream in = connection.getInputStream()) {
+            for (int segment = 0; segment < segmentCount; segment++) {
+                copySegment(in, segment);
+                markDone(segment);
+            }
+            if (in.read() != -1) {
+                throw new IOException("Remote file is larger than expected: " + url);
+            }
+        } catch (final CorruptSegmentException ex) {
+            // No other connection can re-fetch this chunk, and asking again on this one would
+            // only find the whole file already claimed (by us). So the download fails.
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    // Makes sure that a range response starts where we asked, and is for a file of the size
+    // that we expect. Every segment is checked, so whichever one answers first catches a mismatch.
+    private void checkContentRange(final HttpURLConnection connection, final long start)
+            throws IOException {
+        final String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null) {
+            return;
+        }
+        // Format: "bytes first-last/total", where total may be "*"
+        final int space = contentRange.indexOf(' '),
+                dash = contentRange.indexOf('-'),
+                slash = contentRange.lastIndexOf('/');
+        if (space < 0 || dash < space || slash < dash) {
+            throw new IOException("Malformed Content-Range (" + contentRange + "): " + url);
+        }
+        try {
+            final long first = Long.parseLong(contentRange.substring(space + 1, dash).trim());
+            if (first != start) {
+                throw new IOException("Server sent range starting at " + first + " instead of " + start + ": " + url);
+            }
+            if (!contentRange.endsWith("/*")) {
+                final long remoteSize = Long.parseLong(contentRange.substring(slash + 1).trim());
+                if (remoteSize != size) {
+                    throw new IOException("Remote file size (" + remoteSize + ") does not match index ("
+                            + size + "): " + url);
+                }
+            }
+        } catch (final NumberFormatException ex) {
+            throw new IOException("Malformed Content-Range (" + contentRange + "): " + url, ex);
+        }
+    }
+
+    // Reads one segment's worth of bytes from the stream, and writes them at the segment's offset.
+    private void copySegment(final InputStream in, final int segment)
+            throws IOException {
+        final long start = segment * segmentSize;
+        final long length = getSegmentLength(segment);
+        final MessageDigest digest = (segmentHashes != null ? ChecksumUtil.createSha1() : null);
+        final byte[] ioBuffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        while (copied < length) {
+            final int count = in.read(ioBuffer, 0, (int) Math.min(ioBuffer.length, length - copied));
+            if (count < 0) {
+                throw new IOException("Download of " + url + " ended early, at byte " + (start + copied));
+            }
+            if (digest != null) {
+                digest.update(ioBuffer, 0, count);
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(ioBuffer, 0, count);
+            long position = start + copied;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            copied += count;
+            reportProgress(count);
+        }
+        if (digest != null) {
+            final String actualHash = ChecksumUtil.toHexString(digest.digest());
+            if (!actualHash.equalsIgnoreCase(segmentHashes.get(segment))) {
+                // These bytes will be downloaded again, so they should not count twice.
+                reportProgress(-copied);
+                throw new CorruptSegmentException("Chunk " + segment + " of " + url + " is corrupted.");
+            }
+        }
+    }
+
+    // Progress is reported from several threads; the listener sees one call at a time.
+    private synchronized void reportProgress(final long count) {
+        listener.onBytesTransferred(count);
+    }
+
+    private long getSegmentLength(final int segment) {
+        return Math.min(segmentSize, size - segment * segmentSize);
+    }
+
+    private static int getSegmentCount(final long size, final long segmentSize) {
+        return (int) ((size + segmentSize - 1) / segmentSize);
+    }
+
+    private static synchronized ExecutorService getSegmentExecutor() {
+        if (segmentExecutor == null) {
+            segmentExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "DownloadSegment");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return segmentExecutor;
+    }
+
+    // Gets told how many bytes arrived. A negative count takes back bytes of a rejected segment.
+    public interface ProgressListener {
+
+        void onBytesTransferred(long count);
+    }
+
+    // Reads the file from the start, waiting for segments to complete as needed.
+    private final class InOrderStream extends InputStream {
+
+        private long position;
+        private boolean closed;
+
+        @Override
+        public int read()
+                throws IOException {
+            final byte[] oneByte = new byte[1];
+            final int count = read(oneByte, 0, 1);
+            return (count == 1 ? (oneByte[0] & 0xFF) : -1);
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length)
+                throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (length == 0) {
+                return 0;
+            }
+            if (position >= size) {
+                return -1;
+            }
+            final long available = waitForData();
+            final int count = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, available)), position);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        // Waits until the byte at current position has been downloaded.
+        // Returns the number of downloaded bytes from there on.
+        private long waitForData()
+                throws IOException {
+            synchronized (SegmentedDownload.this) {
+                while (contiguousBytes <= position) {
+                    if (failure != null) {
+                        throw new IOException("Segmented download of " + url + " failed", failure);
+                    }
+                    try {
+                        SegmentedDownload.this.wait();
+                    } catch (final InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while downloading " + url);
+                    }
+                }
+                return contiguousBytes - position;
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException {
+            if (!closed) {
+                closed = true;
+                stop();
+                channel.close();
+            }
+        }
+    }
+
+    private final static class CorruptSegmentException extends IOException {
+
+        CorruptSegmentException(final String message) {
+            super(message);
+        }
+    }
+}
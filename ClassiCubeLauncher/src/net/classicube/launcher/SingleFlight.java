@@ -0,0 +1,129 @@
+package net.classicube.launcher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+
+// Coalesces identical concurrent requests: while a call for some key is in flight, other callers
+// asking for the same key wait for it and share its result, instead of making their own call.
+// Successful (non-null) results are also remembered for a short while, so that repeated calls
+// in quick succession (e.g. a user clicking "refresh" several times) don't go out at all.
+final class SingleFlight<V> {
+
+    private final long memoNanos;
+    private final Map<String, FutureTask<V>> inFlight = new HashMap<>();
+    private final Map<String, Memo<V>> memos = new HashMap<>();
+    private long calls, sharedCalls, memoHits;
+    // Bumped by forgetAll. Calls that started in an older generation are not shared or remembered.
+    private long generation;
+
+    public SingleFlight(final long memoMillis) {
+        if (memoMillis < 0) {
+            throw new IllegalArgumentException("memoMillis");
+        }
+        this.memoNanos = memoMillis * 1000 * 1000;
+    }
+
+    // Returns the result of loader for given key, making the call only if needed.
+    public V get(final String key, final Callable<V> loader)
+            throws Exception {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        if (loader == null) {
+            throw new NullPointerException("loader");
+        }
+        final FutureTask<V> task;
+        final long taskGeneration;
+        boolean isOwner = false;
+        synchronized (this) {
+            taskGeneration = generation;
+            final Memo<V> memo = memos.get(key);
+            if (memo != null && System.nanoTime() - memo.expiresNanos < 0) {
+                memoHits++;
+                LogUtil.getLogger().log(Level.FINE, "Reusing recent response for {0}", key);
+                return memo.value;
+            }
+            memos.remove(key);
+            FutureTask<V> existingTask = inFlight.get(key);
+            if (existingTask == null) {
+                existingTask = new FutureTask<>(loader);
+                inFlight.put(key, existingTask);
+                isOwner = true;
+                calls++;
+            } else {
+                sharedCalls++;
+                LogUtil.getLogger().log(Level.FINE, "Joining in-flight request for {0}", key);
+            }
+            task = existingTask;
+        }
+
+        if (isOwner) {
+            // The first caller makes the call on its own thread; others wait for it.
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    if (inFlight.get(key) == task) {
+                        inFlight.remove(key);
+                    }
+                    final V value = getQuietly(task);
+                    // A result from before forgetAll may belong to a session that has since ended.
+                    if (value != null && memoNanos > 0 && taskGeneration == generation) {
+                        memos.put(key, new Memo<>(value, System.nanoTime() + memoNanos));
+                    }
+                }
+            }
+        }
+        try {
+            return task.get();
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        }
+    }
+
+    // Drops all remembered results (e.g. when they may depend on a session that has ended).
+    // Calls still in flight finish for their current callers, but later callers don't join them,
+    // and their results are not remembered.
+    public synchronized void forgetAll() {
+        generation++;
+        memos.clear();
+        inFlight.clear();
+    }
+
+    // Number of calls that were actually made.
+    public synchronized long getCallCount() {
+        return calls;
+    }
+
+    // Number of calls saved: by joining an in-flight call, or by reusing a recent result.
+    public synchronized long getSavedCount() {
+        return sharedCalls + memoHits;
+    }
+
+    private static <V> V getQuietly(final FutureTask<V> task) {
+        try {
+            return task.get();
+        } catch (final InterruptedException | ExecutionException ex) {
+            return null;
+        }
+    }
+
+    private final static class Memo<V> {
+
+        final V value;
+        final long expiresNanos;
+
+        Memo(final V value, final long expiresNanos) {
+            this.value = value;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+}
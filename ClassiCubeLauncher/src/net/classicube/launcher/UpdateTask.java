@@ -4,26 +4,37 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.security.DigestInputStream;
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.CRC32;
-import java.util.zip.ZipEntry;
 import javax.swing.SwingWorker;
+import net.classicube.launcher.gui.DebugWindow;
 import net.classicube.launcher.gui.UpdateScreen;
+import net.classicube.shared.ChecksumUtil;
 import net.classicube.shared.SharedUpdaterCode;
 import net.classicube.shared.SharedUpdaterCode.OperatingSystem;
 
@@ -35,7 +46,12 @@ public final class UpdateTask
     // =============================================================================================
     //                                                                    CONSTANTS & INITIALIZATION
     // =============================================================================================
-    private static final int MAX_PARALLEL_DOWNLOADS = 5;
+    private static final int MAX_PARALLEL_DOWNLOADS = 8,
+            LZMA_HEADER_PEEK_LENGTH = 5;
+    // Portion of max heap size that in-progress LZMA decoders are allowed to use
+    private static final long DECODER_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 2;
+    // If remote indexes have not changed, local files are only re-checked this often
+    private static final long FULL_CHECK_INTERVAL_MILLIS = 24L * 60 * 60 * 1000;
     private static final UpdateTask instance = new UpdateTask();
 
     public static UpdateTask getInstance() {
@@ -48,50 +64,98 @@ public final class UpdateTask
     // =============================================================================================
     //                                                                                          MAIN
     // =============================================================================================
-    private Thread[] workerThreads;
+    private DownloadScheduler<FileToDownload> scheduler;
+    private final DownloadScheduler.MemoryBudget decoderMemory
+            = new DownloadScheduler.MemoryBudget(DECODER_MEMORY_BUDGET);
+    private final ConcurrentMap<File, Object> deployLocks = new ConcurrentHashMap<>();
     private final List<FileToDownload> files = new ArrayList<>();
+    private final CountDownLatch lzmaReady = new CountDownLatch(1);
     private int activeFileNumber, filesDone, totalFiles;
-    private boolean needLzma;
+    private volatile boolean needLzma;
+    private FileFingerprints fingerprints;
+    private IndexCache indexCache;
     private boolean updatesApplied;
+    private volatile boolean downloadFailed;
+    // Set once both remote indexes turn out unchanged since a recent full check (see canSkipLocalCheck)
+    private volatile boolean localCheckSkipped;
+    // Resources that are downloaded in the background, after the game has been started
+    private final List<FileToDownload> deferredFiles = new ArrayList<>();
+    private Thread deferredDownloadThread;
+    private volatile boolean inDeferredPhase;
 
     @Override
     protected Boolean doInBackground()
             throws Exception {
-        this.digest = MessageDigest.getInstance("SHA1");
         final Logger logger = LogUtil.getLogger();
+        this.fingerprints = FileFingerprints.load(
+                new File(SharedUpdaterCode.getLauncherDir(), PathUtil.FINGERPRINTS_FILE_NAME));
+        this.indexCache = IndexCache.load(
+                new File(SharedUpdaterCode.getLauncherDir(), PathUtil.INDEX_CACHE_FILE_NAME));
+        try {
+            return checkAndUpdate(logger);
+        } finally {
+            this.fingerprints.save();
+        }
+    }
 
-        // build up file list
+    private boolean checkAndUpdate(final Logger logger)
+            throws Exception {
         logger.log(Level.INFO, "Checking for updates.");
-        files.addAll(pickBinariesToDownload());
-        files.addAll(pickResourcesToDownload());
 
-        if (files.isEmpty()) {
-            logger.log(Level.INFO, "No updates needed.");
-
-        } else {
-            this.updatesApplied = true;
-            logger.log(Level.INFO, "Downloading updates: {0}", listFileNames(files));
+        // Fetch both remote indexes in the background, while local files are being checked.
+        final FutureTask<HashMap<String, ArtifactIndex.Entry>> remoteIndex = new FutureTask<>(
+                new Callable<HashMap<String, ArtifactIndex.Entry>>() {
+                    @Override
+                    public HashMap<String, ArtifactIndex.Entry> call() {
+                        return getRemoteIndex();
+                    }
+                });
+        final FutureTask<HashMap<String, String>> remoteResList = new FutureTask<>(
+                new Callable<HashMap<String, String>>() {
+                    @Override
+                    public HashMap<String, String> call() {
+                        return getRemoteResourceList();
+                    }
+                });
+        new Thread(remoteIndex, "RemoteIndexFetch").start();
+        new Thread(remoteResList, "RemoteResListFetch").start();
+
+        // Whether local files need checking at all is only known once both indexes are here.
+        // So checking starts right away, and is cut short if it turns out to be unnecessary.
+        final List<FileToDownload> binaries = listBinaries();
+        if (isFullCheckRecent()) {
+            watchForUnchangedIndexes(remoteIndex, remoteResList, binaries);
+        }
 
-            this.activeFileNumber = 0;
-            this.totalFiles = files.size();
+        // Start downloading right away. Each file that is found to need an update goes
+        // straight onto the download queue, while checking continues.
+        scheduler = makeScheduler();
+        downloadStartNanos = System.nanoTime();
+        scheduler.start();
 
-            if (needLzma) {
-                // We need to get lzma.jar before deploying any other files, because some of them
-                // may need to be decompressed. "lzma.jar" will always be the first on the list.
-                processOneFile(getNextFileSync(false));
+        try {
+            try {
+                pickBinariesToDownload(binaries, remoteIndex);
+            } finally {
+                if (!needLzma) {
+                    // If lzma.jar is being downloaded, the worker that deploys it opens this latch.
+                    lzmaReady.countDown();
+                }
             }
+            pickResourcesToDownload(remoteResList);
+        } finally {
+            // No more files will be queued. Wait for all downloads to finish.
+            scheduler.finishAndWait();
+        }
 
-            // The rest of the files are processed by worker threads.
-            int numThreads = Math.min(totalFiles, MAX_PARALLEL_DOWNLOADS);
-            workerThreads = new Thread[numThreads];
-            for (int i = 0; i < numThreads; i++) {
-                workerThreads[i] = new DownloadThread(logger);
-                workerThreads[i].start();
-            }
-            // Wait for all workers to finish
-            for (int i = 0; i < numThreads; i++) {
-                workerThreads[i].join();
-            }
+        if (localCheckSkipped) {
+            logger.log(Level.INFO, "Remote indexes have not changed since last check. Skipped the rest of local checks.");
+        }
+        if (files.isEmpty()) {
+            logger.log(Level.INFO, "No updates needed.");
+        } else {
+            logger.log(Level.INFO, "Downloaded updates: {0}", listFileNames(files));
+            logTransferSummary(logger);
         }
 
         // confirm that all required files have been downloaded and deployed
@@ -100,21 +164,489 @@ public final class UpdateTask
         if (this.updatesApplied) {
             logger.log(Level.INFO, "Updates applied.");
         }
+        // downloadFailed also covers files that were downloaded fine, but failed to deploy or extract.
+        // A cut-short check does not count as a full one (the time of the last full check stays).
+        final boolean fullyChecked = (remoteIndex.get() != null && remoteResList.get() != null
+                && !localCheckSkipped);
+        if (!deferredFiles.isEmpty()) {
+            startDeferredDownloads(fullyChecked);
+        } else if (fullyChecked && !downloadFailed) {
+            indexCache.markFullCheckDone();
+        }
+        return true;
+    }
+
+    private DownloadScheduler<FileToDownload> makeScheduler() {
+        return new DownloadScheduler<>(new DownloadPriority(), MAX_PARALLEL_DOWNLOADS,
+                new DownloadScheduler.Handler<FileToDownload>() {
+                    @Override
+                    public long process(final FileToDownload file) {
+                        return processScheduledFile(file);
+                    }
+                });
+    }
+
+    // Local files don't need to be checked if neither remote index has changed since the
+    // last full check, as long as that check was recent (in case files got damaged since then).
+    private boolean isFullCheckRecent() {
+        final long sinceLastCheck = System.currentTimeMillis() - indexCache.getLastFullCheck();
+        return (sinceLastCheck >= 0 && sinceLastCheck <= FULL_CHECK_INTERVAL_MILLIS);
+    }
+
+    // Waits (on a separate thread) for both indexes to arrive. If neither has changed, sets
+    // localCheckSkipped, which makes the pick* methods drop the checks that are still pending.
+    private void watchForUnchangedIndexes(final Future<HashMap<String, ArtifactIndex.Entry>> remoteIndex,
+            final Future<HashMap<String, String>> remoteResList, final List<FileToDownload> binaries) {
+        final Thread watcher = new Thread("IndexChangeCheck") {
+            @Override
+            public void run() {
+                try {
+                    if (canSkipLocalCheck(remoteIndex, remoteResList, binaries)) {
+                        localCheckSkipped = true;
+                    }
+                } catch (final InterruptedException | ExecutionException ex) {
+                    LogUtil.getLogger().log(Level.FINE, "Could not tell whether remote indexes changed", ex);
+                }
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private boolean canSkipLocalCheck(final Future<HashMap<String, ArtifactIndex.Entry>> remoteIndex,
+            final Future<HashMap<String, String>> remoteResList, final List<FileToDownload> binaries)
+            throws InterruptedException, ExecutionException {
+        if (remoteIndex.get() == null || remoteResList.get() == null
+                || !indexCache.isUnchanged(REMOTE_INDEX_URL) || !indexCache.isUnchanged(RESOURCE_LIST_URL)) {
+            return false;
+        }
+        // Cheap sanity check: all binaries must still be present.
+        for (final FileToDownload file : binaries) {
+            if (!file.localName.exists() && !(file == launcherJarFile && file.targetName.exists())) {
+                return false;
+            }
+        }
         return true;
     }
 
+    // Adds a file to the download queue. Worker threads pick it up right away.
+    private synchronized void queueDownload(final FileToDownload file) {
+        if (file == null) {
+            throw new NullPointerException("file");
+        }
+        LogUtil.getLogger().log(Level.FINE, "Queued {0} for download", file.localName.getName());
+        this.updatesApplied = true;
+        this.files.add(file);
+        this.totalFiles++;
+        if (file.remoteSize > 0) {
+            this.bytesTotal.addAndGet(file.remoteSize);
+        }
+        this.scheduler.submit(file);
+    }
+
+    // Downloads and deploys a file taken from the queue. Compressed files have to wait until
+    // lzma.jar is ready, in case it's being downloaded at the same time.
+    private void processQueuedFile(final FileToDownload file)
+            throws InterruptedException, IOException {
+        if (file == lzmaJarFile) {
+            try {
+                processWithFailover(file);
+            } finally {
+                lzmaReady.countDown();
+            }
+        } else {
+            // Block containers may hold LZMA-compressed blocks too.
+            final String remoteNameLower = file.remoteName.toLowerCase();
+            if (remoteNameLower.endsWith(".lzma") || remoteNameLower.endsWith(PACK_BLOCKS_SUFFIX)) {
+                lzmaReady.await();
+            }
+            processWithFailover(file);
+        }
+    }
+
+    // If downloading from the current mirror fails, tries again from the next one (if any).
+    private void processWithFailover(final FileToDownload file)
+            throws InterruptedException, IOException {
+        while (true) {
+            final String mirror = file.mirrors.getCurrent();
+            try {
+                processOneFile(file);
+                return;
+            } catch (final DeployException ex) {
+                // Not the mirror's fault. Downloading again would not help.
+                throw ex;
+            } catch (final IOException ex) {
+                if (!file.mirrors.failOver(mirror)) {
+                    throw ex;
+                }
+                LogUtil.getLogger().log(Level.WARNING,
+                        "Downloading " + file.remoteName + " from " + mirror + " failed. Trying another mirror.", ex);
+            }
+        }
+    }
+
     private void processOneFile(final FileToDownload file)
             throws InterruptedException, IOException {
-        // step 1: download
-        final File downloadedFile = downloadFile(file);
+        final File partialFile = SharedUpdaterCode.getPartialDownloadFile(file.remoteName);
+
+        // Cheapest path: patch the jar that's already installed
+        if (file.patchBaseHash != null && !partialFile.exists() && patchOneFile(file)) {
+            return;
+        }
+
+        // Large files: fetch several byte ranges at once, unpacking them in order as they arrive.
+        if (!partialFile.exists() && file.remoteSize > 0 && SegmentedDownload.isWorthSplitting(file.remoteSize)) {
+            final long initialTransferred = file.bytesTransferred;
+            try {
+                streamSegmented(file, partialFile);
+                return;
+            } catch (final DeployException ex) {
+                throw ex;
+            } catch (final IOException | RuntimeException ex) {
+                LogUtil.getLogger().log(Level.WARNING,
+                        "Segmented download of " + file.remoteName + " failed. Falling back to one stream.", ex);
+                // Those bytes will be downloaded again.
+                bytesTotal.addAndGet(file.bytesTransferred - initialTransferred);
+            }
+        }
+
+        // Preferred path: download, unpack and stage in a single pass.
+        // Skipped if an earlier attempt left a partial download behind, to resume that instead.
+        if (!partialFile.exists()) {
+            try {
+                streamOneFile(file);
+                return;
+            } catch (final DeployException ex) {
+                throw ex;
+            } catch (final IOException | RuntimeException ex) {
+                LogUtil.getLogger().log(Level.WARNING,
+                        "Streaming update of " + file.remoteName + " failed. Falling back to temp files.", ex);
+            }
+        }
+
+        // Fallback path:
+        // step 1: download (resuming, if possible) and validate against the remote index
+        File downloadedFile = downloadFile(file, partialFile);
+        if (!isDownloadValid(file, downloadedFile)) {
+            // Partial file was stale or corrupted. Start over, once.
+            SharedUpdaterCode.deletePartialDownload(partialFile);
+            downloadedFile = downloadFile(file, partialFile);
+            if (!isDownloadValid(file, downloadedFile)) {
+                SharedUpdaterCode.deletePartialDownload(partialFile);
+                throw new IOException("Downloaded file does not match remote index: " + file.remoteName);
+            }
+        }
 
         // step 2: unpack
-        final File processedFile = SharedUpdaterCode.processDownload(
-                LogUtil.getLogger(),
-                downloadedFile, file.baseUrl + file.remoteName, file.targetName.getName());
+        final File processedFile;
+        final long reserved;
+        try (final InputStream headerStream = new BufferedInputStream(new FileInputStream(downloadedFile))) {
+            reserved = reserveDecoderMemory(file.remoteName, headerStream);
+        }
+        try {
+            processedFile = SharedUpdaterCode.processDownload(
+                    LogUtil.getLogger(),
+                    downloadedFile, file.getUrl(), file.targetName.getName());
+        } catch (final IOException | RuntimeException ex) {
+            SharedUpdaterCode.deletePartialDownload(partialFile);
+            throw ex;
+        } finally {
+            decoderMemory.release(reserved);
+        }
 
-        // step 3: deploy
+        // step 3: verify the result (mismatches are retried from the next mirror, if any).
+        // Processed file is hashed again, since that's the file that gets deployed.
+        final String verifiedHash;
+        try {
+            verifiedHash = verifyStagedFile(file, processedFile, null);
+        } catch (final IOException ex) {
+            processedFile.delete();
+            SharedUpdaterCode.deletePartialDownload(partialFile);
+            throw ex;
+        }
+
+        // step 4: deploy
+        bytesDecompressed.addAndGet(processedFile.length());
         deployFile(processedFile, file.targetName);
+        SharedUpdaterCode.deletePartialDownload(partialFile);
+        recordVerifiedHash(file, verifiedHash);
+        cacheDeployedFile(file);
+    }
+
+    // Same as streamOneFile, but the file is downloaded in segments (see SegmentedDownload).
+    // Segments land in a temporary file, which the unpacker reads in order while the rest downloads.
+    private void streamSegmented(final FileToDownload file, final File partialFile)
+            throws IOException, InterruptedException {
+        final File segmentsFile = new File(partialFile.getPath() + ".segments");
+        final long startNanos = System.nanoTime();
+        final SegmentedDownload download = new SegmentedDownload(file.getUrl(), file.remoteSize,
+                file.chunkSize, file.chunkHashes,
+                new SegmentedDownload.ProgressListener() {
+                    @Override
+                    public void onBytesTransferred(final long count) {
+                        UpdateTask.this.onBytesTransferred(file, count);
+                    }
+                });
+        final File stagingFile = createStagingFile(file);
+        try {
+            final String streamHash;
+            try (final InputStream in = download.start(segmentsFile)) {
+                streamHash = unpackStream(file, in, stagingFile);
+            }
+            LogUtil.getLogger().log(Level.FINE, "Downloaded {0} in segments ({1} ms)",
+                    new Object[]{file.remoteName, (System.nanoTime() - startNanos) / (1000 * 1000)});
+            deployStagedFile(file, stagingFile, streamHash);
+        } finally {
+            segmentsFile.delete();
+            deleteStagingFile(stagingFile);
+        }
+    }
+
+    // Checks an unpacked (not yet deployed) file against the remote index, and returns its hash.
+    // Jars are checked by manifest hash, which also verifies their signatures. Resources are
+    // checked by SHA1: streamHash, if it was computed during download, or else hashed now.
+    // Throws if the file does not match, so that a bad download never replaces a working file.
+    private String verifyStagedFile(final FileToDownload file, final File stagedFile, final String streamHash)
+            throws IOException {
+        final String expectedHash, actualHash;
+        if (file.remoteContentHash != null) {
+            expectedHash = file.remoteContentHash;
+            actualHash = (streamHash != null ? streamHash : ChecksumUtil.computeSha1(stagedFile));
+        } else if (file.remoteManifestHash != null) {
+            expectedHash = file.remoteManifestHash;
+            try {
+                actualHash = ChecksumUtil.computeManifestHash(stagedFile);
+            } catch (final SecurityException ex) {
+                throw new IOException("Downloaded " + file.remoteName + " has invalid signatures", ex);
+            }
+        } else {
+            // Nothing to check against (lzma.jar is not listed in the index).
+            return null;
+        }
+        if (!actualHash.equalsIgnoreCase(expectedHash)) {
+            throw new IOException(String.format("Downloaded %s does not match remote index: expected %s, got %s",
+                    file.remoteName, expectedHash, actualHash));
+        }
+        return actualHash;
+    }
+
+    // Remembers the hash of a freshly-deployed file, so that the next launch doesn't re-read it.
+    // Must only be called once deployFile has succeeded.
+    private void recordVerifiedHash(final FileToDownload file, final String hash) {
+        if (hash != null) {
+            fingerprints.record(file.targetName, hash, file.remoteContentHash == null);
+        }
+    }
+
+    // Keeps a copy of a freshly-deployed file, to avoid re-downloading it for future repairs.
+    // Must only be called once deployFile has succeeded.
+    private void cacheDeployedFile(final FileToDownload file) {
+        if (file.cacheKey != null) {
+            ArtifactCache.put(file.cacheKey, file.targetName);
+        }
+    }
+
+    // Feeds the HTTP stream straight through decompression/unpacking into a staging file
+    // (next to the target, so that it can be atomically moved into place), then deploys it.
+    private void streamOneFile(final FileToDownload file)
+            throws IOException, InterruptedException {
+        final File stagingFile = createStagingFile(file);
+        try {
+            final HttpURLConnection connection = HttpUtil.openDownload(file.getUrl());
+            boolean completed = false;
+            final String streamHash;
+            try {
+                if (file.remoteSize < 0 && connection.getContentLengthLong() > 0) {
+                    // Size was not known from the index. Count it towards the total now.
+                    bytesTotal.addAndGet(connection.getContentLengthLong());
+                }
+                streamHash = unpackStream(file, new CountingInputStream(connection.getInputStream(), file),
+                        stagingFile);
+                completed = true;
+            } finally {
+                HttpUtil.finishDownload(connection, completed);
+            }
+            deployStagedFile(file, stagingFile, streamHash);
+        } finally {
+            deleteStagingFile(stagingFile);
+        }
+    }
+
+    // Makes a staging file next to the target, after making sure that there's room to unpack it.
+    private File createStagingFile(final FileToDownload file)
+            throws IOException {
+        final File parentDir = file.targetName.getCanonicalFile().getParentFile();
+        if (!parentDir.exists() && !parentDir.mkdirs()) {
+            throw new IOException("Unable to make directory " + parentDir);
+        }
+        if (file.unpackedSize > 0 && parentDir.getUsableSpace() < file.unpackedSize) {
+            throw new IOException("Not enough disk space to unpack " + file.remoteName);
+        }
+        return File.createTempFile(file.targetName.getName(), ".staging", parentDir);
+    }
+
+    private static void deleteStagingFile(final File stagingFile) {
+        if (stagingFile.exists() && !stagingFile.delete()) {
+            stagingFile.deleteOnExit();
+        }
+    }
+
+    // Unpacks a downloaded stream (read to the end, and closed) into the staging file.
+    // The downloaded bytes are hashed on the way through: resources are stored as-is, and the index
+    // may list the hash of the whole compressed file for binaries. Returns that hash (or null).
+    private String unpackStream(final FileToDownload file, final InputStream downloadStream, final File stagingFile)
+            throws IOException, InterruptedException {
+        final String remoteUrl = file.getUrl();
+        final boolean hashStream = (file.remoteContentHash != null || file.remoteFileHash != null);
+        final DigestInputStream digestStream = new DigestInputStream(downloadStream, ChecksumUtil.createSha1());
+        digestStream.on(hashStream);
+        try (final InputStream siteStream = new BufferedInputStream(digestStream)) {
+            final long reserved = reserveDecoderMemory(remoteUrl, siteStream);
+            try {
+                SharedUpdaterCode.processDownloadStream(LogUtil.getLogger(), siteStream, remoteUrl, stagingFile);
+            } finally {
+                decoderMemory.release(reserved);
+            }
+            if (hashStream) {
+                // Decoder may stop short of the end of the stream. Hash the rest, too.
+                final byte[] buffer = new byte[8192];
+                while (siteStream.read(buffer) != -1) {
+                    // just reading
+                }
+            }
+        }
+        if (!hashStream) {
+            return null;
+        }
+        final String streamHash = ChecksumUtil.toHexString(digestStream.getMessageDigest().digest());
+        if (file.remoteFileHash != null && !file.remoteFileHash.equalsIgnoreCase(streamHash)) {
+            throw new IOException(String.format("Downloaded %s does not match remote index: expected %s, got %s",
+                    file.remoteName, file.remoteFileHash, streamHash));
+        }
+        return streamHash;
+    }
+
+    // Checks an unpacked file against the remote index, then moves it into place.
+    private void deployStagedFile(final FileToDownload file, final File stagingFile, final String streamHash)
+            throws IOException {
+        final String verifiedHash = verifyStagedFile(file, stagingFile,
+                (file.remoteContentHash != null ? streamHash : null));
+        bytesDecompressed.addAndGet(stagingFile.length());
+        deployFile(stagingFile, file.targetName);
+        recordVerifiedHash(file, verifiedHash);
+        cacheDeployedFile(file);
+    }
+
+    // Tries to update an installed jar by applying a delta patch (see JarPatcher), instead of
+    // downloading the whole file. Returns false if no patch is available, or if anything goes
+    // wrong, in which case the caller should download the full file. Throws if the patched jar
+    // could not be deployed.
+    private boolean patchOneFile(final FileToDownload file)
+            throws InterruptedException, DeployException {
+        final String jarName = file.localName.getName();
+        final String patchUrl = PATCH_BASE_URL
+                + JarPatcher.getPatchName(jarName, file.patchBaseHash, file.remoteManifestHash);
+        File stagingFile = null;
+        try {
+            final File parentDir = file.targetName.getCanonicalFile().getParentFile();
+            stagingFile = File.createTempFile(jarName, ".staging", parentDir);
+
+            // steps 1 and 2: download the patch, apply it, and check the result against the remote index
+            final boolean patched = JarPatcher.tryPatch(patchUrl, file.patchBaseFile, stagingFile,
+                    file.remoteManifestHash, new JarPatcher.PatchDownloader() {
+                        @Override
+                        public void download(final String url, final File patchFile)
+                                throws IOException, InterruptedException {
+                            downloadPatch(file, url, patchFile);
+                        }
+                    });
+            if (!patched) {
+                // The full file will be downloaded after all.
+                bytesTotal.addAndGet(file.bytesTransferred);
+                return false;
+            }
+
+            // step 3: deploy
+            LogUtil.getLogger().log(Level.INFO, "Patched {0} ({1} instead of {2})",
+                    new Object[]{jarName, formatBytes(file.bytesTransferred), formatBytes(file.remoteSize)});
+            if (file.remoteSize > 0) {
+                // Only the patch was downloaded, rather than the whole file.
+                bytesTotal.addAndGet(file.bytesTransferred - file.remoteSize);
+            }
+            bytesDecompressed.addAndGet(stagingFile.length());
+            // Only reached if the patched jar really replaced the old one.
+            deployFile(stagingFile, file.targetName);
+            fingerprints.record(file.targetName, file.remoteManifestHash.toLowerCase(), true);
+            cacheDeployedFile(file);
+            return true;
+
+        } catch (final DeployException ex) {
+            throw ex;
+        } catch (final IOException | RuntimeException ex) {
+            LogUtil.getLogger().log(Level.WARNING,
+                    "Error patching " + jarName + ". Will download the full file.", ex);
+            bytesTotal.addAndGet(file.bytesTransferred);
+            return false;
+        } finally {
+            if (stagingFile != null && stagingFile.exists() && !stagingFile.delete()) {
+                stagingFile.deleteOnExit();
+            }
+        }
+    }
+
+    // Downloads and decompresses a patch, counting its bytes towards the file's progress.
+    private void downloadPatch(final FileToDownload file, final String patchUrl, final File patchFile)
+            throws IOException, InterruptedException {
+        final HttpURLConnection connection = HttpUtil.openDownload(patchUrl);
+        boolean completed = false;
+        try {
+            try (final InputStream siteStream = new BufferedInputStream(
+                    new CountingInputStream(connection.getInputStream(), file))) {
+                final long reserved = reserveDecoderMemory(patchUrl, siteStream);
+                try {
+                    SharedUpdaterCode.processDownloadStream(LogUtil.getLogger(), siteStream, patchUrl, patchFile);
+                } finally {
+                    decoderMemory.release(reserved);
+                }
+            }
+            completed = true;
+        } finally {
+            HttpUtil.finishDownload(connection, completed);
+        }
+    }
+
+    // If given stream is LZMA-compressed, reads the decoder's dictionary size from its header,
+    // and reserves that much memory from the decoder budget. Stream position is not changed.
+    // Block containers of LZMA blocks reserve the dictionaries of all blocks that may be decoded
+    // at once. Returns the amount reserved (0 for uncompressed files).
+    private long reserveDecoderMemory(final String remoteName, final InputStream stream)
+            throws IOException, InterruptedException {
+        final String remoteNameLower = remoteName.toLowerCase();
+        if (remoteNameLower.endsWith(".blocks")) {
+            return decoderMemory.acquire(SharedUpdaterCode.getBlockDecoderMemory(stream));
+        } else if (!remoteNameLower.endsWith(".lzma")) {
+            return 0;
+        }
+        // LZMA header: 1 byte of properties, followed by dictionary size (32-bit little-endian)
+        final byte[] header = new byte[LZMA_HEADER_PEEK_LENGTH];
+        stream.mark(header.length);
+        int bytesRead = 0;
+        while (bytesRead < header.length) {
+            final int len = stream.read(header, bytesRead, header.length - bytesRead);
+            if (len == -1) {
+                break;
+            }
+            bytesRead += len;
+        }
+        stream.reset();
+        if (bytesRead < header.length) {
+            return 0;
+        }
+        final long dictionarySize = (header[1] & 0xFFL)
+                | ((header[2] & 0xFFL) << 8)
+                | ((header[3] & 0xFFL) << 16)
+                | ((header[4] & 0xFFL) << 24);
+        return decoderMemory.acquire(dictionarySize);
     }
 
     // Make a list of all local names, for logging
@@ -131,95 +663,283 @@ public final class UpdateTask
         return sb.toString();
     }
 
-    // Grabs the next file from the list, and sends a progress report to UpdateScreen.
-    // Returns null when there are no more files left to download.
-    private synchronized FileToDownload getNextFileSync(boolean fileWasDone) {
-        if (fileWasDone) {
-            filesDone++;
+    // Called by scheduler's worker threads. Returns number of bytes transferred.
+    private long processScheduledFile(final FileToDownload file) {
+        synchronized (this) {
+            activeFileNumber++;
+            currentFileName = file.localName.getName();
+            publishDownloadProgress();
         }
-        FileToDownload fileToReturn = null;
-        String fileNameToReport;
+        try {
+            processQueuedFile(file);
+        } catch (final IOException | InterruptedException | RuntimeException ex) {
+            downloadFailed = true;
+            LogUtil.getLogger().log(Level.SEVERE,
+                    "Error downloading or deploying an updated file: " + file.remoteName, ex);
+        } finally {
+            signalFileDone();
+        }
+        return file.bytesTransferred;
+    }
 
-        if (activeFileNumber != totalFiles) {
-            fileToReturn = files.get(activeFileNumber);
-            activeFileNumber++;
-            fileNameToReport = fileToReturn.localName.getName();
+    private synchronized void signalFileDone() {
+        filesDone++;
+        if (inDeferredPhase) {
+            logDeferredProgress();
         } else {
-            fileNameToReport = files.get(totalFiles - 1).localName.getName();
+            publishDownloadProgress();
+        }
+    }
+
+    // =============================================================================================
+    //                                                                            DEFERRED DOWNLOADS
+    // =============================================================================================
+    // Sounds and music are not needed in the first seconds of play, so (unless they can be restored
+    // from cache) they are downloaded after the update screen is done, while the game starts.
+    // The client picks them up the next time it's launched.
+    private static final String[] DEFERRED_RESOURCE_PREFIXES
+            = {"music/", "newmusic/", "newsound/", "sound/", "sound3/", "streaming/"};
+
+    private static boolean isDeferred(final FileToDownload file) {
+        if (file.remoteContentHash == null) {
+            // Only resources may be deferred. Binaries are always essential.
+            return false;
+        }
+        final String name = file.remoteName.toLowerCase();
+        for (final String prefix : DEFERRED_RESOURCE_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void deferDownload(final FileToDownload file) {
+        LogUtil.getLogger().log(Level.FINE, "Deferred download of {0}", file.remoteName);
+        this.deferredFiles.add(file);
+    }
+
+    // Starts downloading deferred files on a background thread. Progress counters start over,
+    // and are reported to the log (and debug window), since UpdateScreen will be gone by then.
+    private synchronized void startDeferredDownloads(final boolean fullyChecked) {
+        final List<FileToDownload> filesToDownload = new ArrayList<>(this.deferredFiles);
+        LogUtil.getLogger().log(Level.INFO,
+                "Essential files are ready. Downloading {0} more resources in the background.",
+                filesToDownload.size());
+        this.inDeferredPhase = true;
+        this.files.addAll(filesToDownload);
+        this.totalFiles = filesToDownload.size();
+        this.filesDone = 0;
+        this.activeFileNumber = 0;
+        this.bytesDone.set(0);
+        this.bytesTotal.set(0);
+        this.bytesDecompressed.set(0);
+        this.deferredDownloadThread = new Thread("DeferredDownloads") {
+            @Override
+            public void run() {
+                downloadDeferredFiles(filesToDownload, fullyChecked);
+            }
+        };
+        this.deferredDownloadThread.start();
+    }
+
+    private void downloadDeferredFiles(final List<FileToDownload> filesToDownload, final boolean fullyChecked) {
+        final Logger logger = LogUtil.getLogger();
+        final DownloadScheduler<FileToDownload> deferredScheduler = makeScheduler();
+        downloadStartNanos = System.nanoTime();
+        deferredScheduler.start();
+        try {
+            for (final FileToDownload file : filesToDownload) {
+                if (file.remoteSize > 0) {
+                    bytesTotal.addAndGet(file.remoteSize);
+                }
+                deferredScheduler.submit(file);
+            }
+            deferredScheduler.finishAndWait();
+            logger.log(Level.INFO, "Background downloads finished: {0}", listFileNames(filesToDownload));
+            logTransferSummary(logger);
+            // Local files count as fully checked only once everything has been downloaded.
+            if (fullyChecked && !downloadFailed) {
+                indexCache.markFullCheckDone();
+            }
+        } catch (final InterruptedException ex) {
+            logger.log(Level.WARNING, "Background downloads were interrupted", ex);
+        } finally {
+            fingerprints.save();
         }
+    }
 
-        int overallProgress = (this.filesDone * 100 + 100) / this.totalFiles;
-        final String status = String.format("Updating %s (%d/%d)",
-                fileNameToReport, this.activeFileNumber, this.totalFiles);
-        this.publish(new ProgressUpdate(status, overallProgress));
-        return fileToReturn;
+    private void logDeferredProgress() {
+        final String message = String.format("Background downloads: %d/%d files done (%s)",
+                this.filesDone, this.totalFiles, formatBytes(bytesDone.get()));
+        LogUtil.getLogger().log(Level.INFO, message);
+        DebugWindow.writeLine(message);
+    }
+
+    // Blocks until background downloads (if any) are done. Called before the launcher exits,
+    // so that they are not cut off halfway. Never call this on the EDT: it may take minutes.
+    public void waitForDeferredDownloads() {
+        final Thread thread;
+        synchronized (this) {
+            thread = this.deferredDownloadThread;
+        }
+        if (thread != null && thread.isAlive()) {
+            LogUtil.getLogger().log(Level.INFO, "Waiting for background downloads to finish.");
+            try {
+                thread.join();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     // =============================================================================================
     //                                                                        CHECKING / DOWNLOADING
     // =============================================================================================
-    private MessageDigest digest;
-    public static final String FILE_INDEX_URL = "http://www.classicube.net/static/client/version",
+    public static final String FILE_INDEX_URL = SharedUpdaterCode.FILE_INDEX_URL,
             RESOURCE_LIST_URL = "http://www.classicube.net/static/client/reslist",
             RESOURCE_DOWNLOAD_URL = "https://s3.amazonaws.com/MinecraftResources/",
             LAUNCHER_JAR = "launcher.jar";
+    // The binary index (see ArtifactIndex) carries the same data as the text one, in a compact form.
+    // Opt-in, until the server publishes it.
+    private static final boolean USE_BINARY_INDEX = Boolean.getBoolean("classicube.binaryIndex");
+    private static final String REMOTE_INDEX_URL = (USE_BINARY_INDEX ? FILE_INDEX_URL + ".bin" : FILE_INDEX_URL);
+    // Where delta patches are fetched from. Can be overridden (e.g. to point at a local test server).
+    public static final String PATCH_BASE_URL
+            = System.getProperty("classicube.patchUrl", SharedUpdaterCode.BASE_URL);
+    // Binaries that may be updated with a delta patch, instead of downloading the whole file.
+    private static final String[] PATCHABLE_JARS = {"client.jar", LAUNCHER_JAR};
+    private static final String PACK_LZMA_SUFFIX = ".pack.lzma",
+            PACK_BLOCKS_SUFFIX = ".pack.blocks";
+    // Where binaries and resources are downloaded from. Extra mirrors can be listed (comma-separated)
+    // in these system properties. Indexes always come from classicube.net, and every download is
+    // checked against them, so a mirror cannot substitute different files.
+    private final MirrorSet binaryMirrors = new MirrorSet("binary", "classicube.binaryMirrors",
+            SharedUpdaterCode.BASE_URL, "lzma.jar");
+    private final MirrorSet resourceMirrors = new MirrorSet("resource", "classicube.resourceMirrors",
+            RESOURCE_DOWNLOAD_URL, "");
+
+    private void pickResourcesToDownload(final Future<HashMap<String, String>> resListFuture)
+            throws IOException, InterruptedException, ExecutionException {
+        final File resDir = new File(PathUtil.getClientDir(), "resources");
 
-    private List<FileToDownload> pickResourcesToDownload()
-            throws IOException {
-        final List<FileToDownload> pickedFiles = new ArrayList<>();
+        // Start hashing local resources right away, while the resource list is still downloading.
+        final VerificationEngine<File> engine = new VerificationEngine<>();
+        final Set<File> checkedFiles = new HashSet<>();
+        submitResourceChecks(engine, resDir, checkedFiles);
 
-        final File resDir = new File(PathUtil.getClientDir(), "resources");
-        HashMap<String, String> resList = getRemoteResourceList();
+        HashMap<String, String> resList = resListFuture.get();
         if (resList == null) {
             // If downloading resList failed, assume that no new resources need to be downloaded.
             // This allows the game to still launch in offline mode.
-            return pickedFiles;
+            return;
         }
 
+        final Map<File, FileToDownload> expectedFiles = new HashMap<>();
         for (Map.Entry<String, String> entry : resList.entrySet()) {
             String resFileName = entry.getKey();
             final File resFile = new File(resDir, resFileName);
-            boolean doDownload = false;
+            final FileToDownload resDownload = new FileToDownload(resourceMirrors, resFileName, resFile);
+            resDownload.remoteContentHash = entry.getValue();
+            resDownload.cacheKey = entry.getValue();
             if (!resFile.exists()) {
                 // If file does not exist, definitely download it.
-                doDownload = true;
+                pickResource(resDownload);
             } else {
-                // Make sure that the file contents match.
-                try (InputStream is = new FileInputStream(resFile)) {
-                    String localHash = computeHash(is);
-                    String expectedHash = entry.getValue();
-                    if (!localHash.equals(expectedHash)) {
-                        LogUtil.getLogger().log(Level.WARNING,
-                                "Resource hash mismatch for file {0}! Expected {1}, got {2}. Will re-download.",
-                                new Object[]{resFileName, expectedHash, localHash});
-                        doDownload = true;
-                    }
+                // Make sure that the file contents match (checked in parallel, see below).
+                expectedFiles.put(resFile, resDownload);
+                if (!checkedFiles.contains(resFile)) {
+                    submitResourceCheck(engine, resFile);
                 }
             }
-            if (doDownload) {
-                pickedFiles.add(new FileToDownload(RESOURCE_DOWNLOAD_URL, resFileName, resFile));
+        }
+
+        // Collect results of resource checks as they come in
+        while (engine.getPendingCount() > 0) {
+            if (localCheckSkipped) {
+                engine.cancel();
+                break;
+            }
+            final VerificationEngine.Result<File> result = engine.take();
+            final FileToDownload resDownload = expectedFiles.get(result.subject);
+            if (resDownload == null) {
+                // Not on the resource list; nothing to compare against.
+                continue;
+            }
+            if (result.error != null) {
+                LogUtil.getLogger().log(Level.WARNING,
+                        "Error checking resource " + resDownload.remoteName + ". Will re-download.",
+                        result.error);
+                pickResource(resDownload);
+            } else if (!result.hash.equals(resDownload.remoteContentHash)) {
+                LogUtil.getLogger().log(Level.WARNING,
+                        "Resource hash mismatch for file {0}! Expected {1}, got {2}. Will re-download.",
+                        new Object[]{resDownload.remoteName, resDownload.remoteContentHash, result.hash});
+                pickResource(resDownload);
             }
         }
-        return pickedFiles;
     }
 
-    private List<FileToDownload> pickBinariesToDownload()
-            throws IOException {
-        final List<FileToDownload> filesToDownload = new ArrayList<>();
-        final List<FileToDownload> localFiles = listBinaries();
-        final HashMap<String, RemoteFile> remoteFiles = getRemoteIndex();
-        final boolean updateExistingFiles = (Prefs.getUpdateMode() != UpdateMode.DISABLED);
+    // Recursively queues hash checks for all files in given directory.
+    private void submitResourceChecks(final VerificationEngine<File> engine, final File dir,
+            final Set<File> checkedFiles) {
+        final File[] dirFiles = dir.listFiles();
+        if (dirFiles == null) {
+            return;
+        }
+        for (final File file : dirFiles) {
+            if (file.isDirectory()) {
+                submitResourceChecks(engine, file, checkedFiles);
+            } else {
+                submitResourceCheck(engine, file);
+                checkedFiles.add(file);
+            }
+        }
+    }
 
-        // Getting remote file index failed. Abort update.
-        if (remoteFiles == null) {
-            return filesToDownload;
+    private void submitResourceCheck(final VerificationEngine<File> engine, final File resFile) {
+        engine.submit(resFile, new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return getResourceHash(resFile);
+            }
+        });
+    }
+
+    private void pickResource(final FileToDownload resDownload) {
+        if (!restoreFromCache(resDownload, false)) {
+            if (isDeferred(resDownload)) {
+                deferDownload(resDownload);
+            } else {
+                queueDownload(resDownload);
+            }
         }
+    }
+
+    // Returns SHA1 of a resource file (unless file is unchanged since last check).
+    // Safe to call from verification threads.
+    private String getResourceHash(final File resFile)
+            throws IOException {
+        String localHash = fingerprints.getVerifiedHash(resFile, false);
+        if (localHash == null) {
+            localHash = ChecksumUtil.computeSha1(resFile);
+            fingerprints.record(resFile, localHash, false);
+        }
+        return localHash;
+    }
 
+    private void pickBinariesToDownload(final List<FileToDownload> localFiles,
+            final Future<HashMap<String, ArtifactIndex.Entry>> remoteIndexFuture)
+            throws IOException, InterruptedException, ExecutionException {
+        final List<FileToDownload> missingFiles = new ArrayList<>();
+        final boolean updateExistingFiles = (Prefs.getUpdateMode() != UpdateMode.DISABLED);
+        boolean lzmaCorrupted = false;
+
+        // Check local files first. Jars are verified in parallel, while remote index is downloading.
+        final VerificationEngine<FileToDownload> engine = new VerificationEngine<>();
         for (final FileToDownload localFile : localFiles) {
             signalCheckProgress(localFile.localName.getName());
 
-            final RemoteFile remoteFile = remoteFiles.get(localFile.remoteName);
-            boolean download = false;
             boolean localFileMissing = !localFile.localName.exists();
             File fileToHash = localFile.localName;
 
@@ -250,33 +970,19 @@ public final class UpdateTask
                 // If local file does not exist
                 LogUtil.getLogger().log(Level.INFO,
                         "Will download {0}: does not exist locally", localFile.localName.getName());
-                download = true;
+                missingFiles.add(localFile);
 
             } else if (updateExistingFiles && !isLzma) {
-                // If local file exists, but may need updating
-                if (remoteFile != null) {
-                    try {
-                        final String localHash = computeManifestHash(fileToHash);
-                        if (!localHash.equalsIgnoreCase(remoteFile.hash)) {
-                            // If file contents don't match
-                            LogUtil.getLogger().log(Level.INFO,
-                                    "Contents of {0} don''t match ({1} vs {2}). Will re-download.",
-                                    new Object[]{fileToHash.getName(), localHash, remoteFile.hash});
-                            download = true;
-                        }
-                    } catch (final IOException ex) {
-                        LogUtil.getLogger().log(Level.SEVERE,
-                                "Error computing hash of a local file. Will attempt to re-download.", ex);
-                        download = true;
-                    } catch (final SecurityException ex) {
-                        String logMsg = "Error verifying " + fileToHash.getName() + ". Will re-download.";
-                        LogUtil.getLogger().log(Level.SEVERE, logMsg, ex);
-                        download = true;
+                // If local file exists, but may need updating, verify it (see below)
+                final File jarToHash = fileToHash;
+                localFile.fileToHash = jarToHash;
+                engine.submit(localFile, new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return getManifestHash(jarToHash);
                     }
-                } else {
-                    LogUtil.getLogger().log(Level.WARNING,
-                            "No remote match for local file {0}", fileToHash.getName());
-                }
+                });
+
             } else if (isLzma) {
                 // Make sure that lzma.jar is not corrupted
                 try {
@@ -284,22 +990,156 @@ public final class UpdateTask
                 } catch (Exception ex) {
                     LogUtil.getLogger().log(Level.SEVERE,
                             "lzma.jar appears to be corrupted, and will be re-downloaded.", ex);
-                    download = true;
+                    lzmaCorrupted = true;
                 }
             }
+        }
 
+        final HashMap<String, ArtifactIndex.Entry> remoteFiles = remoteIndexFuture.get();
+        // Getting remote file index failed. Abort update.
+        if (remoteFiles == null) {
+            return;
+        }
+
+        // lzma.jar (if needed) is queued first, since other files depend on it.
+        if (lzmaCorrupted) {
+            pickBinary(lzmaJarFile, findRemoteFile(remoteFiles, lzmaJarFile));
+        }
+        for (final FileToDownload localFile : missingFiles) {
+            pickBinary(localFile, findRemoteFile(remoteFiles, localFile));
+        }
+
+        // Collect results of manifest/signature checks as they come in
+        while (engine.getPendingCount() > 0) {
+            if (localCheckSkipped) {
+                engine.cancel();
+                break;
+            }
+            final VerificationEngine.Result<FileToDownload> result = engine.take();
+            final FileToDownload localFile = result.subject;
+            final ArtifactIndex.Entry remoteFile = findRemoteFile(remoteFiles, localFile);
+            boolean download = false;
+            if (remoteFile == null) {
+                LogUtil.getLogger().log(Level.WARNING,
+                        "No remote match for local file {0}", localFile.fileToHash.getName());
+            } else if (result.error instanceof SecurityException) {
+                String logMsg = "Error verifying " + localFile.fileToHash.getName() + ". Will re-download.";
+                LogUtil.getLogger().log(Level.SEVERE, logMsg, result.error);
+                download = true;
+            } else if (result.error != null) {
+                LogUtil.getLogger().log(Level.SEVERE,
+                        "Error computing hash of a local file. Will attempt to re-download.", result.error);
+                download = true;
+            } else if (!result.hash.equalsIgnoreCase(remoteFile.hash)) {
+                // If file contents don't match
+                LogUtil.getLogger().log(Level.INFO,
+                        "Contents of {0} don''t match ({1} vs {2}). Will re-download.",
+                        new Object[]{localFile.fileToHash.getName(), result.hash, remoteFile.hash});
+                download = true;
+            }
             if (download) {
-                if (isLzma) {
-                    needLzma = true;
-                } else if (remoteFile == null) {
-                    String errMsg = String.format("Required file \"%s%s\" cannot be found.",
-                            localFile.baseUrl, localFile.remoteName);
-                    throw new RuntimeException(errMsg);
+                if (result.error == null && isPatchable(localFile)) {
+                    // Local jar is intact, just outdated: try patching it first.
+                    localFile.patchBaseFile = localFile.fileToHash;
+                    localFile.patchBaseHash = result.hash;
                 }
-                filesToDownload.add(localFile);
+                pickBinary(localFile, remoteFile);
+            }
+        }
+    }
+
+    // Looks up a binary in the remote index. If the index also lists the same jar as a block container
+    // (see SharedUpdaterCode.processDownload), that is downloaded instead: it decodes on all cores.
+    private static ArtifactIndex.Entry findRemoteFile(final HashMap<String, ArtifactIndex.Entry> remoteFiles,
+            final FileToDownload localFile) {
+        final ArtifactIndex.Entry entry = remoteFiles.get(localFile.remoteName);
+        if (entry != null && localFile.remoteName.endsWith(PACK_LZMA_SUFFIX)) {
+            final String blocksName = localFile.remoteName.substring(0,
+                    localFile.remoteName.length() - PACK_LZMA_SUFFIX.length()) + PACK_BLOCKS_SUFFIX;
+            final ArtifactIndex.Entry blocksEntry = remoteFiles.get(blocksName);
+            if (blocksEntry != null && blocksEntry.hash.equalsIgnoreCase(entry.hash)) {
+                localFile.remoteName = blocksName;
+                return blocksEntry;
             }
         }
-        return filesToDownload;
+        return entry;
+    }
+
+    private static boolean isPatchable(final FileToDownload file) {
+        for (final String jarName : PATCHABLE_JARS) {
+            if (file.localName.getName().equals(jarName) && file.remoteName.startsWith(jarName + ".pack.")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Queues a binary for download (unless it can be restored from cache).
+    private void pickBinary(final FileToDownload localFile, final ArtifactIndex.Entry remoteFile) {
+        final boolean isLzma = (localFile == lzmaJarFile);
+        if (isLzma) {
+            needLzma = true;
+        } else if (remoteFile == null) {
+            String errMsg = String.format("Required file \"%s\" cannot be found.",
+                    localFile.getUrl());
+            throw new RuntimeException(errMsg);
+        }
+        if (remoteFile != null && !isLzma) {
+            localFile.remoteSize = remoteFile.size;
+            localFile.remoteManifestHash = remoteFile.hash;
+            localFile.cacheKey = getJarCacheKey(localFile.localName.getName(), remoteFile.hash);
+            localFile.chunkSize = remoteFile.chunkSize;
+            localFile.chunkHashes = remoteFile.chunkHashes;
+            localFile.remoteFileHash = remoteFile.fileHash;
+            localFile.unpackedSize = remoteFile.unpackedSize;
+            if (restoreFromCache(localFile, true)) {
+                return;
+            }
+        }
+        queueDownload(localFile);
+    }
+
+    // Tries to deploy a file from the local artifact cache instead of downloading it.
+    // Cached copies are verified (manifest hash for jars, SHA1 for resources) before use.
+    // Returns true if the file was restored.
+    private boolean restoreFromCache(final FileToDownload file, final boolean isJar) {
+        final File cachedFile = ArtifactCache.get(file.cacheKey);
+        if (cachedFile == null) {
+            return false;
+        }
+        try {
+            final String cachedHash, expectedHash;
+            if (isJar) {
+                cachedHash = ChecksumUtil.computeManifestHash(cachedFile);
+                expectedHash = file.remoteManifestHash;
+            } else {
+                cachedHash = ChecksumUtil.computeSha1(cachedFile);
+                expectedHash = file.remoteContentHash;
+            }
+            if (!cachedHash.equalsIgnoreCase(expectedHash)) {
+                LogUtil.getLogger().log(Level.WARNING,
+                        "Cached copy of {0} is corrupted, and will be discarded.", file.remoteName);
+                ArtifactCache.remove(file.cacheKey);
+                return false;
+            }
+            ArtifactCache.restore(cachedFile, file.targetName);
+            LogUtil.getLogger().log(Level.INFO, "Restored {0} from artifact cache", file.targetName);
+            this.updatesApplied = true;
+            return true;
+        } catch (final IOException | SecurityException ex) {
+            LogUtil.getLogger().log(Level.WARNING,
+                    "Unable to restore " + file.remoteName + " from artifact cache. Will re-download.", ex);
+            return false;
+        }
+    }
+
+    // A manifest hash only identifies a jar's contents if the jar is signed: unsigned jars with
+    // the same (or no) manifest all hash alike. So jars are cached under a key that also
+    // includes the jar's name, and can't be restored in place of a different jar.
+    private static String getJarCacheKey(final String jarName, final String manifestHash) {
+        final byte[] keyBytes = (jarName.toLowerCase() + "\n" + manifestHash.toLowerCase())
+                .getBytes(StandardCharsets.UTF_8);
+        return ChecksumUtil.toHexString(ChecksumUtil.createSha1().digest(keyBytes));
     }
 
     private FileToDownload lzmaJarFile, launcherJarFile, nativesFile;
@@ -311,23 +1151,23 @@ public final class UpdateTask
         final File clientDir = PathUtil.getClientDir();
         final File launcherDir = SharedUpdaterCode.getLauncherDir();
 
-        lzmaJarFile = new FileToDownload(SharedUpdaterCode.BASE_URL, "lzma.jar",
+        lzmaJarFile = new FileToDownload(binaryMirrors, "lzma.jar",
                 new File(launcherDir, "lzma.jar"));
         binaryFiles.add(lzmaJarFile);
 
-        launcherJarFile = new FileToDownload(SharedUpdaterCode.BASE_URL, "launcher.jar.pack.lzma",
+        launcherJarFile = new FileToDownload(binaryMirrors, "launcher.jar.pack.lzma",
                 new File(launcherDir, LAUNCHER_JAR),
                 new File(launcherDir, SharedUpdaterCode.LAUNCHER_NEW_JAR_NAME));
         binaryFiles.add(launcherJarFile);
 
-        binaryFiles.add(new FileToDownload(SharedUpdaterCode.BASE_URL, "client.jar.pack.lzma",
+        binaryFiles.add(new FileToDownload(binaryMirrors, "client.jar.pack.lzma",
                 new File(clientDir, "client.jar")));
 
-        binaryFiles.add(new FileToDownload(SharedUpdaterCode.BASE_URL, "lwjgl.jar.pack.lzma",
+        binaryFiles.add(new FileToDownload(binaryMirrors, "lwjgl.jar.pack.lzma",
                 new File(clientDir, "libs/lwjgl.jar")));
-        binaryFiles.add(new FileToDownload(SharedUpdaterCode.BASE_URL, "lwjgl_util.jar.pack.lzma",
+        binaryFiles.add(new FileToDownload(binaryMirrors, "lwjgl_util.jar.pack.lzma",
                 new File(clientDir, "libs/lwjgl_util.jar")));
-        binaryFiles.add(new FileToDownload(SharedUpdaterCode.BASE_URL, "jinput.jar.pack.lzma",
+        binaryFiles.add(new FileToDownload(binaryMirrors, "jinput.jar.pack.lzma",
                 new File(clientDir, "libs/jinput.jar")));
 
         nativesFile = pickNativeDownload();
@@ -337,36 +1177,38 @@ public final class UpdateTask
     }
 
     // get a list of binaries available from CC.net
-    private HashMap<String, RemoteFile> getRemoteIndex() {
-        final String hashIndex = HttpUtil.downloadString(FILE_INDEX_URL);
-        final HashMap<String, RemoteFile> remoteFiles = new HashMap<>();
+    private HashMap<String, ArtifactIndex.Entry> getRemoteIndex() {
+        final String hashIndex = indexCache.fetch(REMOTE_INDEX_URL, USE_BINARY_INDEX);
 
         // if getting the list failed, don't panic. Abort update instead.
         if (hashIndex == null) {
             return null;
         }
+        final HashMap<String, ArtifactIndex.Entry> remoteFiles;
+        if (USE_BINARY_INDEX) {
+            try {
+                remoteFiles = ArtifactIndex.parseBinary(hashIndex.getBytes(StandardCharsets.ISO_8859_1));
+            } catch (final IOException ex) {
+                LogUtil.getLogger().log(Level.SEVERE, "Error parsing " + REMOTE_INDEX_URL, ex);
+                return null;
+            }
+        } else {
+            remoteFiles = ArtifactIndex.parseText(hashIndex);
+        }
 
         // special treatment for LZMA
-        final RemoteFile lzmaFile = new RemoteFile();
+        final ArtifactIndex.Entry lzmaFile = new ArtifactIndex.Entry();
         lzmaFile.name = SharedUpdaterCode.LZMA_JAR_NAME;
         lzmaFile.hash = "N/A";
+        lzmaFile.size = -1;
         remoteFiles.put(lzmaFile.name.toLowerCase(), lzmaFile);
-
-        // the rest of the files
-        for (final String line : hashIndex.split("\\r?\\n")) {
-            final String[] components = line.split(" ");
-            final RemoteFile file = new RemoteFile();
-            file.name = components[0];
-            file.hash = components[2].toLowerCase();
-            remoteFiles.put(file.name.toLowerCase(), file);
-        }
         return remoteFiles;
     }
 
     // Get a list of resource files to download (from MinecraftResources site).
     // Returns a map with filenames for keys, and expected SHA1 hashes for values.
     private HashMap<String, String> getRemoteResourceList() {
-        final String hashIndex = HttpUtil.downloadString(RESOURCE_LIST_URL);
+        final String hashIndex = indexCache.fetch(RESOURCE_LIST_URL);
         final HashMap<String, String> remoteFiles = new HashMap<>();
 
         // if getting the list failed, don't panic. Abort update instead.
@@ -382,58 +1224,19 @@ public final class UpdateTask
         return remoteFiles;
     }
 
-    // Verifies signatures of all files inside the .jar, and returns SHA1 hash of the manifest.
-    private String computeManifestHash(final File clientJar)
+    // Same as ChecksumUtil.computeManifestHash, but skips all the work if the jar has not
+    // changed since it was last verified.
+    private String getManifestHash(final File jar)
             throws IOException, SecurityException {
-        if (clientJar == null) {
-            throw new NullPointerException("clientJar");
-        }
-        try (final JarFile jarFile = new JarFile(clientJar)) {
-            final ZipEntry manifest = jarFile.getEntry("META-INF/MANIFEST.MF");
-            if (manifest == null) {
-                return "<none>";
-            }
-            // Ensure all the entries' signatures verify correctly
-            byte[] buffer = new byte[64 * 1024];
-            for (JarEntry je : Collections.list(jarFile.entries())) {
-                try (InputStream is = jarFile.getInputStream(je)) {
-                    while (is.read(buffer, 0, buffer.length) != -1) {
-                        // SecurityException will be thrown by .read() if a signature check fails.
-                    }
-                }
-            }
-            try (final InputStream is = jarFile.getInputStream(manifest)) {
-                return computeHash(is);
-            }
+        String hash = fingerprints.getVerifiedHash(jar, true);
+        if (hash == null) {
+            hash = ChecksumUtil.computeManifestHash(jar);
+            fingerprints.record(jar, hash, true);
         }
+        return hash;
     }
 
-    private String computeHash(InputStream is)
-            throws FileNotFoundException, IOException {
-        final byte[] ioBuffer = new byte[64 * 1024];
-        try (final DigestInputStream dis = new DigestInputStream(is, digest)) {
-            while (dis.read(ioBuffer) != -1) {
-                // DigestInputStream is doing its job, we just need to read through it.
-            }
-        }
-        final byte[] localHashBytes = digest.digest();
-        final String hashString = new BigInteger(1, localHashBytes).toString(16);
-        return padLeft(hashString, '0', 40);
-    }
-
-    private static String padLeft(final String s, final char c, final int n) {
-        if (s == null) {
-            throw new NullPointerException("s");
-        }
-        final StringBuilder sb = new StringBuilder();
-        for (int toPrepend = n - s.length(); toPrepend > 0; toPrepend--) {
-            sb.append(c);
-        }
-        sb.append(s);
-        return sb.toString();
-    }
-
-    private static FileToDownload pickNativeDownload() {
+    private FileToDownload pickNativeDownload() {
         final String osName;
         switch (OperatingSystem.detect()) {
             case WINDOWS:
@@ -454,33 +1257,79 @@ public final class UpdateTask
         final String remoteName = osName + "_natives.jar";
         final File localPath = new File(PathUtil.getClientDir(),
                 "natives/" + osName + "_natives.jar");
-        return new FileToDownload(SharedUpdaterCode.BASE_URL, remoteName, localPath);
+        return new FileToDownload(binaryMirrors, remoteName, localPath);
     }
 
-    private File downloadFile(final FileToDownload file)
+    private File downloadFile(final FileToDownload file, final File partialFile)
             throws MalformedURLException, FileNotFoundException, IOException, InterruptedException {
         if (file == null) {
             throw new NullPointerException("file");
         }
-        final File tempFile = File.createTempFile(file.localName.getName(), ".downloaded");
-        final URL website = new URL(file.baseUrl + file.remoteName);
+        if (partialFile == null) {
+            throw new NullPointerException("partialFile");
+        }
+        final long initialLength = (partialFile.exists() ? partialFile.length() : 0);
+        final String remoteUrl = file.getUrl();
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            SharedUpdaterCode.downloadResumable(LogUtil.getLogger(), remoteUrl, partialFile);
+            success = true;
+        } finally {
+            // Resumable downloads happen in shared code, so count bytes (and time) after the fact.
+            final long bytesReceived = Math.max(0, partialFile.length() - initialLength);
+            onBytesTransferred(file, bytesReceived);
+            RequestTimings.recordTotal("GET", remoteUrl,
+                    (success ? HttpURLConnection.HTTP_OK : -1), bytesReceived, System.nanoTime() - startNanos);
+        }
+        return partialFile;
+    }
 
-        try (InputStream siteStream = website.openStream()) {
-            PathUtil.copyStreamToFile(siteStream, tempFile);
+    // Checks a downloaded file against what the remote index told us to expect:
+    // size and (if listed) SHA1 of the compressed file for binaries, SHA1 hash for resources.
+    private boolean isDownloadValid(final FileToDownload file, final File downloadedFile)
+            throws IOException {
+        if (file.remoteSize >= 0 && downloadedFile.length() != file.remoteSize) {
+            LogUtil.getLogger().log(Level.WARNING,
+                    "Size mismatch for downloaded {0}: expected {1}, got {2}",
+                    new Object[]{file.remoteName, file.remoteSize, downloadedFile.length()});
+            return false;
         }
-        return tempFile;
+        final String expectedHash = (file.remoteContentHash != null ? file.remoteContentHash : file.remoteFileHash);
+        if (expectedHash != null) {
+            final String localHash = ChecksumUtil.computeSha1(downloadedFile);
+            if (!localHash.equalsIgnoreCase(expectedHash)) {
+                LogUtil.getLogger().log(Level.WARNING,
+                        "Hash mismatch for downloaded {0}: expected {1}, got {2}",
+                        new Object[]{file.remoteName, expectedHash, localHash});
+                return false;
+            }
+        }
+        return true;
     }
 
     // =============================================================================================
     //                                                                      POST-DOWNLOAD PROCESSING
     // =============================================================================================
-    private synchronized void deployFile(final File processedFile, File targetFile) {
+    // Deploys are serialized per target file, so different files can be deployed in parallel.
+    // Throws if the target could not be replaced, in which case the old file may still be there.
+    private void deployFile(final File processedFile, File targetFile)
+            throws DeployException {
         if (processedFile == null) {
             throw new NullPointerException("processedFile");
         }
         if (targetFile == null) {
             throw new NullPointerException("localName");
         }
+        final Object newLock = new Object();
+        final Object existingLock = deployLocks.putIfAbsent(targetFile.getAbsoluteFile(), newLock);
+        synchronized (existingLock != null ? existingLock : newLock) {
+            deployFileLocked(processedFile, targetFile);
+        }
+    }
+
+    private void deployFileLocked(final File processedFile, File targetFile)
+            throws DeployException {
         LogUtil.getLogger().log(Level.INFO, "Deploying {0}", targetFile);
         try {
             final File parentDir = targetFile.getCanonicalFile().getParentFile();
@@ -494,11 +1343,12 @@ public final class UpdateTask
                 extractNatives();
             }
         } catch (final IOException ex) {
-            LogUtil.getLogger().log(Level.SEVERE, "Error deploying " + targetFile.getName(), ex);
+            throw new DeployException("Error deploying " + targetFile.getName(), ex);
         }
     }
 
-    // Extract the contents of natives jar file
+    // Extract the contents of natives jar file. Throws if any library could not be replaced,
+    // so that the update counts as failed (and the next launch checks everything again).
     void extractNatives()
             throws FileNotFoundException, IOException {
         LogUtil.getLogger().log(Level.FINE, "extractNatives({0})", nativesFile.targetName.getName());
@@ -510,9 +1360,7 @@ public final class UpdateTask
                 if (!entry.isDirectory() && (entry.getName().indexOf('/') == -1)) {
                     final File outFile = new File(nativeFolder, entry.getName());
                     if (outFile.exists() && !outFile.delete()) {
-                        LogUtil.getLogger().log(Level.SEVERE,
-                                "Could not replace native file: {0}", entry.getName());
-                        return;
+                        throw new IOException("Could not replace native file: " + entry.getName());
                     }
                     extractNativeFile(jarFile, entry, outFile);
                 }
@@ -522,10 +1370,11 @@ public final class UpdateTask
 
     // Makes sure that everything from LWJGL's natives jar is properly deployed.
     private void ensureNativesAreExtracted()
-            throws IOException {
+            throws IOException, InterruptedException {
         final File nativeFolder = getNativesFolder();
 
         try (final JarFile jarFile = new JarFile(nativesFile.targetName, true)) {
+            final VerificationEngine<JarEntry> engine = new VerificationEngine<>();
             for (final JarEntry entry : Collections.list(jarFile.entries())) {
                 if (!entry.isDirectory() && (entry.getName().indexOf('/') == -1)) {
                     final File outFile = new File(nativeFolder, entry.getName());
@@ -533,29 +1382,51 @@ public final class UpdateTask
                         LogUtil.getLogger().log(Level.WARNING,
                                 "Native library is missing, and will be re-extracted: {0}", outFile);
                         extractNativeFile(jarFile, entry, outFile);
-                    } else if (outFile.length() != entry.getSize()
-                            || computeCRC32(outFile) != entry.getCrc()) {
-                        LogUtil.getLogger().log(Level.WARNING,
-                                "Native library is outdated or corrupted, and will be re-extracted: {0}", outFile);
-                        extractNativeFile(jarFile, entry, outFile);
+                    } else {
+                        // Check CRC in parallel with other libraries (see below).
+                        // Result is null if sizes already don't match.
+                        engine.submit(entry, new Callable<String>() {
+                            @Override
+                            public String call() throws IOException {
+                                if (outFile.length() != entry.getSize()) {
+                                    return null;
+                                }
+                                return Long.toHexString(getCRC32(outFile));
+                            }
+                        });
                     }
                 }
             }
+
+            // Re-extract any libraries that failed the check
+            while (engine.getPendingCount() > 0) {
+                final VerificationEngine.Result<JarEntry> result = engine.take();
+                final JarEntry entry = result.subject;
+                if (result.error != null || result.hash == null
+                        || Long.parseLong(result.hash, 16) != entry.getCrc()) {
+                    final File outFile = new File(nativeFolder, entry.getName());
+                    LogUtil.getLogger().log(Level.WARNING,
+                            "Native library is outdated or corrupted, and will be re-extracted: {0}", outFile);
+                    extractNativeFile(jarFile, entry, outFile);
+                }
+            }
         }
     }
 
-    // Calculates the CRC32 checksum of a given file
-    public static long computeCRC32(final File file) throws IOException {
-        try (final FileInputStream fis = new FileInputStream(file)) {
-            try (final InputStream inputStream = new BufferedInputStream(fis)) {
-                final CRC32 crc = new CRC32();
-                int cnt;
-                while ((cnt = inputStream.read()) != -1) {
-                    crc.update(cnt);
-                }
-                return crc.getValue();
+    // Same as ChecksumUtil.computeCRC32, but reuses the recorded checksum if file has not changed since.
+    private long getCRC32(final File file)
+            throws IOException {
+        final String recordedCrc = fingerprints.getVerifiedHash(file, false);
+        if (recordedCrc != null) {
+            try {
+                return Long.parseLong(recordedCrc, 16);
+            } catch (final NumberFormatException ex) {
+                // fall through to a full check
             }
         }
+        final long crc = ChecksumUtil.computeCRC32(file);
+        fingerprints.record(file, Long.toHexString(crc), false);
+        return crc;
     }
 
     // Finds the folder that contains LWJGL natives. If it does not exist, it's created.
@@ -585,7 +1456,7 @@ public final class UpdateTask
 
         try {
             ensureNativesAreExtracted();
-        } catch (IOException ex) {
+        } catch (IOException | InterruptedException ex) {
             throw new RuntimeException("Update process failed. Unable to extract a required library file.", ex);
         }
 
@@ -599,8 +1470,74 @@ public final class UpdateTask
     // =============================================================================================
     //                                                                            PROGRESS REPORTING
     // =============================================================================================
+    // Byte-level progress is published to UpdateScreen at most this often
+    private static final long PROGRESS_FRAME_NANOS = 1000L * 1000 * 1000 / 10;
     private volatile UpdateScreen updateScreen;
     private static boolean updateFinished = false;
+    private final AtomicLong bytesDone = new AtomicLong(),
+            bytesTotal = new AtomicLong(),
+            bytesDecompressed = new AtomicLong();
+    private volatile long downloadStartNanos, lastProgressNanos;
+    private volatile String currentFileName = "";
+
+    // Called (from any download thread) whenever bytes arrive from the network.
+    // Progress updates are coalesced, so the EDT isn't flooded.
+    private void onBytesTransferred(final FileToDownload file, final long count) {
+        file.bytesTransferred += count;
+        bytesDone.addAndGet(count);
+        if (System.nanoTime() - lastProgressNanos >= PROGRESS_FRAME_NANOS) {
+            publishDownloadProgress();
+        }
+    }
+
+    private synchronized void publishDownloadProgress() {
+        if (inDeferredPhase) {
+            // UpdateScreen is gone by now. See logDeferredProgress.
+            return;
+        }
+        lastProgressNanos = System.nanoTime();
+        final long done = bytesDone.get();
+        final long total = bytesTotal.get();
+        final int overallProgress;
+        if (total > 0) {
+            overallProgress = (int) Math.min(100, done * 100 / total);
+        } else {
+            overallProgress = (this.filesDone * 100 + 100) / this.totalFiles;
+        }
+        final double elapsedSeconds = (lastProgressNanos - downloadStartNanos) / 1e9;
+        final long bytesPerSecond = (elapsedSeconds > 0 ? (long) (done / elapsedSeconds) : 0);
+        final long etaSeconds = (bytesPerSecond > 0 && total > done ? (total - done) / bytesPerSecond : -1);
+
+        final StringBuilder status = new StringBuilder(String.format("Updating %s (%d/%d)",
+                currentFileName, this.activeFileNumber, this.totalFiles));
+        if (bytesPerSecond > 0) {
+            status.append(" - ").append(formatBytes(bytesPerSecond)).append("/s");
+            if (etaSeconds >= 0) {
+                status.append(", ").append(etaSeconds).append("s left");
+            }
+        }
+        this.publish(new ProgressUpdate(status.toString(), overallProgress,
+                done, total, bytesPerSecond, etaSeconds));
+    }
+
+    private void logTransferSummary(final Logger logger) {
+        final double elapsedSeconds = (System.nanoTime() - downloadStartNanos) / 1e9;
+        final long done = bytesDone.get();
+        logger.log(Level.INFO, "Transferred {0} ({1} decompressed) in {2}s, average {3}/s",
+                new Object[]{formatBytes(done), formatBytes(bytesDecompressed.get()),
+                    String.format("%.1f", elapsedSeconds),
+                    formatBytes(elapsedSeconds > 0 ? (long) (done / elapsedSeconds) : 0)});
+    }
+
+    private static String formatBytes(final long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        } else {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+        }
+    }
 
     public static boolean getUpdateFinished() {
         // If "keep open" option is on, we only want the updater to run once (before first launch).
@@ -660,6 +1597,8 @@ public final class UpdateTask
 
         public String statusString;
         public int progress;
+        // byte-level details (zero/negative if unknown)
+        public long bytesDone, bytesTotal, bytesPerSecond, etaSeconds = -1;
 
         public ProgressUpdate(final String statusString, final int progress) {
             if (statusString == null) {
@@ -668,56 +1607,116 @@ public final class UpdateTask
             this.statusString = statusString;
             this.progress = progress;
         }
+
+        public ProgressUpdate(final String statusString, final int progress, final long bytesDone,
+                final long bytesTotal, final long bytesPerSecond, final long etaSeconds) {
+            this(statusString, progress);
+            this.bytesDone = bytesDone;
+            this.bytesTotal = bytesTotal;
+            this.bytesPerSecond = bytesPerSecond;
+            this.etaSeconds = etaSeconds;
+        }
+    }
+
+    // Reports bytes read from the network stream back to UpdateTask.
+    private final class CountingInputStream extends FilterInputStream {
+
+        private final FileToDownload file;
+
+        CountingInputStream(final InputStream in, final FileToDownload file) {
+            super(in);
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                onBytesTransferred(file, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                onBytesTransferred(file, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long count = super.skip(n);
+            onBytesTransferred(file, count);
+            return count;
+        }
     }
 
     private final static class FileToDownload {
 
-        // remote filename
-        public final String baseUrl;
-        public final String remoteName;
+        // where the file can be downloaded from, and its name there
+        public final MirrorSet mirrors;
+        // (may be switched to another format of the same file, see findRemoteFile)
+        public String remoteName;
         public final File localName;
         public final File targetName;
-
-        FileToDownload(final String baseUrl, final String remoteName, final File localName) {
-            this(baseUrl, remoteName, localName, localName);
+        // what the remote index says to expect (if known)
+        public long remoteSize = -1;
+        public String remoteContentHash;
+        // manifest hash of the unpacked jar (binaries only)
+        public String remoteManifestHash;
+        public String remoteFileHash;
+        public long unpackedSize = -1;
+        public long chunkSize;
+        public List<String> chunkHashes;
+        // key under which the deployed file is kept in ArtifactCache (if any)
+        public String cacheKey;
+        // local file that was verified against the remote index (may differ from localName)
+        public File fileToHash;
+        // installed jar (and its manifest hash) that a delta patch may be applied to, if any
+        public File patchBaseFile;
+        public String patchBaseHash;
+        // bytes received from the network so far (only updated by the thread downloading it)
+        public volatile long bytesTransferred;
+
+        FileToDownload(final MirrorSet mirrors, final String remoteName, final File localName) {
+            this(mirrors, remoteName, localName, localName);
         }
 
-        FileToDownload(final String baseUrl, final String remoteName, final File localName, final File targetName) {
-            this.baseUrl = baseUrl;
+        FileToDownload(final MirrorSet mirrors, final String remoteName, final File localName, final File targetName) {
+            this.mirrors = mirrors;
             this.remoteName = remoteName;
             this.localName = localName;
             this.targetName = targetName;
         }
-    }
 
-    private final static class RemoteFile {
-
-        String name;
-        String hash;
+        // Full URL of this file on the mirror that's currently in use.
+        public String getUrl() {
+            return mirrors.getCurrent() + remoteName;
+        }
     }
 
-    private class DownloadThread extends Thread {
-
-        private final Logger logger;
+    // Downloaded file was fine, but could not be put in place.
+    private final static class DeployException extends IOException {
 
-        DownloadThread(Logger logger) {
-            this.logger = logger;
+        DeployException(final String message, final Throwable cause) {
+            super(message, cause);
         }
+    }
 
-        @Override
-        public void run() {
-            FileToDownload file = null;
-            try {
-                file = getNextFileSync(false);
-                while (file != null) {
-                    processOneFile(file);
-                    file = getNextFileSync(true);
-                }
+    // Largest files first (to shorten total time), but lzma.jar always goes before anything else.
+    private final class DownloadPriority implements Comparator<FileToDownload> {
 
-            } catch (final Exception ex) {
-                String fileName = (file != null ? file.remoteName : "?");
-                logger.log(Level.SEVERE, "Error downloading or deploying an updated file: " + fileName, ex);
+        @Override
+        public int compare(final FileToDownload a, final FileToDownload b) {
+            if (a == lzmaJarFile) {
+                return (b == lzmaJarFile ? 0 : -1);
+            } else if (b == lzmaJarFile) {
+                return 1;
             }
+            return Long.compare(b.remoteSize, a.remoteSize);
         }
     }
 }
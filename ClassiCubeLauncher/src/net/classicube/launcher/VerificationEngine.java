@@ -0,0 +1,96 @@
+package net.classicube.launcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Runs a batch of local file checks (hashing, signature verification) across all CPU cores,
+// and hands back results in the order they complete. Each check gets its own digest, so checks
+// never share state. "T" is whatever the caller uses to identify the file being checked.
+final class VerificationEngine<T> {
+
+    private static ForkJoinPool pool;
+    private final CompletionService<Result<T>> completionService;
+    private final List<Future<Result<T>>> futures = new ArrayList<>();
+    private int pendingCount;
+
+    public VerificationEngine() {
+        this.completionService = new ExecutorCompletionService<>(getPool());
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    // Queues a check. Its result (a hash string) will be paired with given subject.
+    public void submit(final T subject, final Callable<String> check) {
+        if (subject == null) {
+            throw new NullPointerException("subject");
+        }
+        if (check == null) {
+            throw new NullPointerException("check");
+        }
+        futures.add(completionService.submit(new Callable<Result<T>>() {
+            @Override
+            public Result<T> call() {
+                try {
+                    return new Result<>(subject, check.call(), null);
+                } catch (final Exception ex) {
+                    return new Result<>(subject, null, ex);
+                }
+            }
+        }));
+        pendingCount++;
+    }
+
+    // Drops all checks that have not been taken yet. Those that have not started are never run.
+    public void cancel() {
+        for (final Future<Result<T>> future : futures) {
+            future.cancel(false);
+        }
+        futures.clear();
+        pendingCount = 0;
+    }
+
+    // Number of submitted checks that have not been taken yet.
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    // Waits for the next check to complete, and returns its result.
+    public Result<T> take()
+            throws InterruptedException {
+        if (pendingCount == 0) {
+            throw new IllegalStateException("No pending checks.");
+        }
+        try {
+            final Result<T> result = completionService.take().get();
+            pendingCount--;
+            return result;
+        } catch (final ExecutionException ex) {
+            // Should not happen, since Result captures all exceptions.
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    public final static class Result<T> {
+
+        public final T subject;
+        public final String hash;
+        public final Exception error; // null if check succeeded
+
+        Result(final T subject, final String hash, final Exception error) {
+            this.subject = subject;
+            this.hash = hash;
+            this.error = error;
+        }
+    }
+}
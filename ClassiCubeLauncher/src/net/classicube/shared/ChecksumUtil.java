@@ -0,0 +1,135 @@
+package net.classicube.shared;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+// Checksum code shared between Launcher and SelfUpdater. The two source files are identical.
+// Files are read in bulk into a reused per-thread array, instead of a byte at a time. They are not
+// memory-mapped: on Windows, a mapped file can't be replaced or deleted until the mapping is
+// garbage-collected, and hashed files are often replaced or deleted right afterwards.
+// (ChecksumBenchmark, in the launcher's tests, compares these against mapped reads.)
+public final class ChecksumUtil {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> readBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // What computeManifestHash returns for jars without a manifest
+    public static final String NO_MANIFEST_HASH = "<none>";
+
+    public static MessageDigest createSha1() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new RuntimeException("SHA1 is not supported", ex);
+        }
+    }
+
+    // Computes SHA1 hash of a file, and returns it as a lowercase hex string.
+    public static String computeSha1(final File file)
+            throws IOException {
+        if (file == null) {
+            throw new NullPointerException("file");
+        }
+        final MessageDigest digest = createSha1();
+        final byte[] ioBuffer = readBuffers.get();
+        try (final InputStream fis = new FileInputStream(file)) {
+            int len;
+            while ((len = fis.read(ioBuffer)) != -1) {
+                digest.update(ioBuffer, 0, len);
+            }
+        }
+        return toHexString(digest.digest());
+    }
+
+    // Computes SHA1 hash of everything remaining in the stream, and returns it as a
+    // lowercase hex string. Does not close the stream.
+    public static String computeSha1(final InputStream stream)
+            throws IOException {
+        if (stream == null) {
+            throw new NullPointerException("stream");
+        }
+        final MessageDigest digest = createSha1();
+        final byte[] ioBuffer = new byte[CHUNK_SIZE];
+        int len;
+        while ((len = stream.read(ioBuffer)) != -1) {
+            digest.update(ioBuffer, 0, len);
+        }
+        return toHexString(digest.digest());
+    }
+
+    // Calculates the CRC32 checksum of a file.
+    public static long computeCRC32(final File file)
+            throws IOException {
+        if (file == null) {
+            throw new NullPointerException("file");
+        }
+        // Reading straight into an array beats a direct ByteBuffer here: CRC32.update(ByteBuffer)
+        // needs Java 8, so a direct buffer would have to be copied into an array anyway.
+        final CRC32 crc = new CRC32();
+        final byte[] ioBuffer = readBuffers.get();
+        try (final InputStream fis = new FileInputStream(file)) {
+            int len;
+            while ((len = fis.read(ioBuffer)) != -1) {
+                crc.update(ioBuffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+
+    // Verifies signatures of all files inside the .jar, and returns SHA1 hash of the manifest.
+    // This is the hash that the remote "version" index lists for each jar.
+    public static String computeManifestHash(final File jar)
+            throws IOException, SecurityException {
+        if (jar == null) {
+            throw new NullPointerException("jar");
+        }
+        try (final JarFile jarFile = new JarFile(jar)) {
+            final ZipEntry manifest = jarFile.getEntry("META-INF/MANIFEST.MF");
+            if (manifest == null) {
+                return NO_MANIFEST_HASH;
+            }
+            // Ensure all the entries' signatures verify correctly
+            final byte[] ioBuffer = readBuffers.get();
+            for (final JarEntry je : Collections.list(jarFile.entries())) {
+                try (final InputStream is = jarFile.getInputStream(je)) {
+                    while (is.read(ioBuffer, 0, ioBuffer.length) != -1) {
+                        // SecurityException will be thrown by .read() if a signature check fails.
+                    }
+                }
+            }
+            try (final InputStream is = jarFile.getInputStream(manifest)) {
+                return computeSha1(is);
+            }
+        }
+    }
+
+    // Formats bytes as a lowercase hex string, two digits per byte (leading zeroes included).
+    public static String toHexString(final byte[] bytes) {
+        if (bytes == null) {
+            throw new NullPointerException("bytes");
+        }
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private ChecksumUtil() {
+    }
+}
@@ -1,21 +1,48 @@
 package net.classicube.shared;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Pack200;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 // Code shared between Launcher and SelfUpdater. The two source files are identical.
 // These two classes cannot be combined into one because SelfUpdater must be able to
@@ -23,11 +50,28 @@ import java.util.logging.Logger;
 public class SharedUpdaterCode {
 
     public static final String BASE_URL = "http://static.classicube.net/client/",
+            FILE_INDEX_URL = "http://www.classicube.net/static/client/version",
             LZMA_JAR_NAME = "lzma.jar",
             LAUNCHER_DIR_NAME = ".net.classicube.launcher",
             MAC_PATH_SUFFIX = "/Library/Application Support",
-            LAUNCHER_NEW_JAR_NAME = "launcher.jar.new";
-    private static Constructor<?> constructor;
+            LAUNCHER_NEW_JAR_NAME = "launcher.jar.new",
+            PARTIAL_DOWNLOAD_DIR_NAME = "downloads";
+    private static final String PARTIAL_SUFFIX = ".part",
+            VALIDATOR_SUFFIX = ".validator";
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 3,
+            HTTP_RANGE_NOT_SATISFIABLE = 416,
+            CONNECT_TIMEOUT_MILLIS = 10000,
+            READ_TIMEOUT_MILLIS = 30000;
+    // LZMA.LzmaInputStream(InputStream), loaded from lzma.jar on first use. Once it's set,
+    // decoders are created without taking any lock.
+    private static volatile MethodHandle lzmaConstructor;
+    // Copy buffers are reused by each thread, instead of allocating 64 KB per file.
+    private static final ThreadLocal<byte[]> ioBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
     private static File launcherPath,
             appDataPath;
 
@@ -68,6 +112,185 @@ public class SharedUpdaterCode {
         return appDataPath;
     }
 
+    // Returns the stable location where a partially-downloaded file is kept between attempts
+    // (and between runs), so that interrupted downloads can be resumed. Each remote name gets
+    // its own file: '%' and '/' are escaped, so that names like "a/b" and "a_b" can't collide.
+    public static File getPartialDownloadFile(final String remoteName)
+            throws IOException {
+        if (remoteName == null) {
+            throw new NullPointerException("remoteName");
+        }
+        final File partialDir = new File(getLauncherDir(), PARTIAL_DOWNLOAD_DIR_NAME);
+        if (!partialDir.exists() && !partialDir.mkdirs()) {
+            throw new IOException("Unable to create directory " + partialDir);
+        }
+        final String fileName = remoteName.replace("%", "%25").replace("/", "%2F");
+        return new File(partialDir, fileName + PARTIAL_SUFFIX);
+    }
+
+    // Removes a partial download, along with its stored validator.
+    public static void deletePartialDownload(final File partialFile) {
+        if (partialFile == null) {
+            throw new NullPointerException("partialFile");
+        }
+        partialFile.delete();
+        getValidatorFile(partialFile).delete();
+    }
+
+    // Downloads remoteUrl into partialFile. If partialFile already contains the beginning of the
+    // remote file (left over from an interrupted attempt), only the remainder is requested, using
+    // "Range" and (if the server gave us an ETag or Last-Modified date) "If-Range" headers.
+    // Transfers that break off midway are topped up a few times before giving up.
+    // If the server's response does not line up with the bytes we have, starts over from scratch.
+    // Caller is still responsible for validating the result.
+    public static void downloadResumable(final Logger logger, final String remoteUrl, final File partialFile)
+            throws IOException {
+        if (logger == null) {
+            throw new NullPointerException("logger");
+        }
+        if (remoteUrl == null) {
+            throw new NullPointerException("remoteUrl");
+        }
+        if (partialFile == null) {
+            throw new NullPointerException("partialFile");
+        }
+        for (int attempt = 1;; attempt++) {
+            try {
+                downloadRemainder(logger, remoteUrl, partialFile);
+                return;
+            } catch (final IOException ex) {
+                if (attempt >= MAX_DOWNLOAD_ATTEMPTS) {
+                    throw ex;
+                }
+                logger.log(Level.WARNING, "Download of {0} interrupted at {1} bytes ({2}). Resuming.",
+                        new Object[]{remoteUrl, partialFile.length(), ex});
+            }
+        }
+    }
+
+    private static void downloadRemainder(final Logger logger, final String remoteUrl, final File partialFile)
+            throws IOException {
+        final File validatorFile = getValidatorFile(partialFile);
+        final long existingLength = (partialFile.exists() ? partialFile.length() : 0);
+        final URLConnection connection = new URL(remoteUrl).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        if (existingLength > 0) {
+            connection.setRequestProperty("Range", "bytes=" + existingLength + "-");
+            if (validatorFile.exists()) {
+                final String validator = new String(Files.readAllBytes(validatorFile.toPath()),
+                        StandardCharsets.UTF_8);
+                connection.setRequestProperty("If-Range", validator);
+            }
+        }
+
+        boolean append = false;
+        if (connection instanceof HttpURLConnection) {
+            final int responseCode = ((HttpURLConnection) connection).getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                final long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                if (range == null || range[0] != existingLength) {
+                    // Not the part that we asked for. Start over (on the next attempt).
+                    ((HttpURLConnection) connection).disconnect();
+                    deletePartialDownload(partialFile);
+                    throw new IOException("Server sent the wrong range of " + remoteUrl
+                            + " (expected one starting at byte " + existingLength + ")");
+                }
+                logger.log(Level.INFO, "Resuming download of {0} from byte {1}",
+                        new Object[]{remoteUrl, existingLength});
+                append = true;
+            } else if (responseCode == HTTP_RANGE_NOT_SATISFIABLE && existingLength > 0) {
+                // Only means that we have everything if the remote file is exactly that long.
+                final long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                ((HttpURLConnection) connection).disconnect();
+                if (range == null || range[1] != existingLength) {
+                    deletePartialDownload(partialFile);
+                    throw new IOException("Partial download of " + remoteUrl
+                            + " does not match the remote file. Starting over.");
+                }
+                return;
+            } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Server returned HTTP response code: " + responseCode
+                        + " for URL: " + remoteUrl);
+            }
+        }
+
+        // Remember what version of the remote file we're saving, for If-Range next time.
+        String validator = connection.getHeaderField("ETag");
+        if (validator == null) {
+            validator = connection.getHeaderField("Last-Modified");
+        }
+        if (!append || validator == null) {
+            validatorFile.delete();
+        }
+        if (validator != null) {
+            Files.write(validatorFile.toPath(), validator.getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (final InputStream in = connection.getInputStream()) {
+            try (final OutputStream fileOut = new FileOutputStream(partialFile, append)) {
+                int len;
+                final byte[] ioBuffer = ioBuffers.get();
+                while ((len = in.read(ioBuffer)) > 0) {
+                    fileOut.write(ioBuffer, 0, len);
+                }
+            }
+        }
+    }
+
+    // Looks up the manifest hash that the remote text index ("version") lists for given file.
+    // Throws if the index can't be fetched, or does not list the file.
+    public static String getRemoteManifestHash(final String remoteName)
+            throws IOException {
+        if (remoteName == null) {
+            throw new NullPointerException("remoteName");
+        }
+        final URLConnection connection = new URL(FILE_INDEX_URL).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setUseCaches(false);
+        try (final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Format: <name> <compressedSize> <manifestHash> [...]
+                final String[] columns = line.trim().split("\\s+");
+                if (columns.length >= 3 && columns[0].equalsIgnoreCase(remoteName)) {
+                    return columns[2].toLowerCase();
+                }
+            }
+        }
+        throw new IOException("Remote index does not list " + remoteName);
+    }
+
+    // Parses "bytes <first>-<last>/<total>" (or "bytes */<total>", as sent with 416 responses).
+    // Returns {first, total}, with -1 for "*", or null if the header is missing or malformed.
+    private static long[] parseContentRange(final String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+        final String range = contentRange.substring("bytes ".length()).trim();
+        final int slash = range.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        final String firstPart = range.substring(0, slash);
+        final String totalPart = range.substring(slash + 1);
+        final int dash = firstPart.indexOf('-');
+        try {
+            final long first = (firstPart.equals("*") ? -1
+                    : Long.parseLong(firstPart.substring(0, (dash < 0 ? firstPart.length() : dash))));
+            final long total = (totalPart.equals("*") ? -1 : Long.parseLong(totalPart));
+            return new long[]{first, total};
+        } catch (final NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static File getValidatorFile(final File partialFile) {
+        return new File(partialFile.getPath() + VALIDATOR_SUFFIX);
+    }
+
     public static File processDownload(final Logger logger, final File downloadedFile, final String remoteUrl, final String namePart)
             throws FileNotFoundException, IOException {
         if (logger == null) {
@@ -85,7 +308,24 @@ public class SharedUpdaterCode {
         final String remoteUrlLower = remoteUrl.toLowerCase();
         logger.log(Level.FINE, "processDownload({0})", namePart);
 
-        if (remoteUrlLower.endsWith(".pack.lzma")) {
+        if (remoteUrlLower.endsWith(".pack.blocks")) {
+            // decompress (block container, in parallel) and then unpack (Pack200)
+            final File newFile1 = File.createTempFile(namePart, ".decompressed.tmp");
+            decompressBlocks(logger, downloadedFile, newFile1);
+            downloadedFile.delete();
+            final File newFile2 = File.createTempFile(namePart, ".unpacked.tmp");
+            unpack200(newFile1, newFile2);
+            newFile1.delete();
+            return newFile2;
+
+        } else if (remoteUrlLower.endsWith(".blocks")) {
+            // decompress (block container, in parallel)
+            final File newFile = File.createTempFile(namePart, ".decompressed.tmp");
+            decompressBlocks(logger, downloadedFile, newFile);
+            downloadedFile.delete();
+            return newFile;
+
+        } else if (remoteUrlLower.endsWith(".pack.lzma")) {
             // decompress (LZMA) and then unpack (Pack200)
             final File newFile1 = File.createTempFile(namePart, ".decompressed.tmp");
             decompressLzma(logger, downloadedFile, newFile1);
@@ -114,28 +354,105 @@ public class SharedUpdaterCode {
         }
     }
 
-    static synchronized InputStream makeLzmaInputStream(final Logger logger, final InputStream stream) {
+    // Single-pass alternative to processDownload: decompresses and/or unpacks the downloaded
+    // stream directly into outputFile, without writing any intermediate files.
+    // The processing steps are picked based on remoteUrl's extension, same as processDownload.
+    public static void processDownloadStream(final Logger logger, final InputStream downloadStream,
+            final String remoteUrl, final File outputFile)
+            throws FileNotFoundException, IOException {
+        if (logger == null) {
+            throw new NullPointerException("logger");
+        }
+        if (downloadStream == null) {
+            throw new NullPointerException("downloadStream");
+        }
+        if (remoteUrl == null) {
+            throw new NullPointerException("remoteUrl");
+        }
+        if (outputFile == null) {
+            throw new NullPointerException("outputFile");
+        }
+        final String remoteUrlLower = remoteUrl.toLowerCase();
+        logger.log(Level.FINE, "processDownloadStream({0})", outputFile.getName());
+
+        try (final BufferedInputStream bufferedIn = new BufferedInputStream(downloadStream)) {
+            if (remoteUrlLower.endsWith(".pack.blocks")) {
+                // decompress (block container, decoding blocks ahead in parallel) and then unpack (Pack200)
+                try (final InputStream decompressedIn = new BlockContainerInputStream(logger, bufferedIn)) {
+                    unpack200(decompressedIn, outputFile);
+                }
+
+            } else if (remoteUrlLower.endsWith(".blocks")) {
+                // decompress (block container, decoding blocks ahead in parallel)
+                try (final InputStream decompressedIn = new BlockContainerInputStream(logger, bufferedIn)) {
+                    copyStreamToFile(decompressedIn, outputFile);
+                }
+
+            } else if (remoteUrlLower.endsWith(".pack.lzma")) {
+                // decompress (LZMA) and then unpack (Pack200)
+                try (final InputStream decompressedIn = makeLzmaInputStream(logger, bufferedIn)) {
+                    unpack200(decompressedIn, outputFile);
+                }
+
+            } else if (remoteUrlLower.endsWith(".lzma")) {
+                // decompress (LZMA)
+                try (final InputStream decompressedIn = makeLzmaInputStream(logger, bufferedIn)) {
+                    copyStreamToFile(decompressedIn, outputFile);
+                }
+
+            } else if (remoteUrlLower.endsWith(".pack")) {
+                // unpack (Pack200)
+                unpack200(bufferedIn, outputFile);
+
+            } else {
+                copyStreamToFile(bufferedIn, outputFile);
+            }
+        }
+    }
+
+    // Safe to call from any number of threads at once. Each decoder allocates its own dictionary
+    // (sized by the stream header); LzmaInputStream has no way to reuse one. Dropping the lock
+    // has not been shown to be faster: on one core (see DecoderBenchmark), creating decoders with
+    // 8 MB dictionaries at once was slower than one at a time, since allocation dominates.
+    static InputStream makeLzmaInputStream(final Logger logger, final InputStream stream) {
         if (logger == null) {
             throw new NullPointerException("logger");
         }
         if (stream == null) {
             throw new NullPointerException("stream");
         }
+        MethodHandle constructor = lzmaConstructor;
+        if (constructor == null) {
+            constructor = loadLzmaConstructor(logger);
+        }
         try {
-            if (constructor == null) {
+            return (InputStream) constructor.invokeExact(stream);
+        } catch (final Error ex) {
+            throw ex;
+        } catch (final Throwable ex) {
+            logger.log(Level.SEVERE, "Error creating LzmaInputStream", ex);
+            throw new RuntimeException("Error creating LzmaInputStream", ex);
+        }
+    }
+
+    // Only taken until lzma.jar has been loaded once.
+    private static synchronized MethodHandle loadLzmaConstructor(final Logger logger) {
+        if (lzmaConstructor == null) {
+            try {
                 final File jarFile = new File(getLauncherDir(), LZMA_JAR_NAME);
                 final URL[] jarUrl = new URL[]{jarFile.toURI().toURL()};
                 final URLClassLoader jarLoader = new URLClassLoader(jarUrl, SharedUpdaterCode.class.getClassLoader());
                 final Class<?> lzmaClass = Class.forName("LZMA.LzmaInputStream", true, jarLoader);
-                constructor = lzmaClass.getDeclaredConstructor(InputStream.class);
+                lzmaConstructor = MethodHandles.publicLookup()
+                        .findConstructor(lzmaClass, MethodType.methodType(void.class, InputStream.class))
+                        .asType(MethodType.methodType(InputStream.class, InputStream.class));
+            } catch (final IOException | ClassNotFoundException | NoSuchMethodException |
+                    SecurityException | IllegalAccessException ex) {
+                logger.log(Level.SEVERE, "Error loading LzmaInputStream", ex);
+                throw new RuntimeException("Error loading LzmaInputStream", ex);
             }
-            return (InputStream) constructor.newInstance(stream);
-        } catch (final IOException | ClassNotFoundException | NoSuchMethodException |
-                SecurityException | InstantiationException | IllegalAccessException |
-                IllegalArgumentException | InvocationTargetException ex) {
-            logger.log(Level.SEVERE, "Error creating LzmaInputStream", ex);
-            throw new RuntimeException("Error creating LzmaInputStream", ex);
         }
+        return lzmaConstructor;
     }
 
     private static void decompressLzma(final Logger logger, final File compressedInput, final File decompressedOutput)
@@ -152,15 +469,393 @@ public class SharedUpdaterCode {
         try (final FileInputStream fileIn = new FileInputStream(compressedInput)) {
             try (final BufferedInputStream bufferedIn = new BufferedInputStream(fileIn)) {
                 try (final InputStream compressedIn = SharedUpdaterCode.makeLzmaInputStream(logger, bufferedIn)) {
-                    try (final FileOutputStream fileOut = new FileOutputStream(decompressedOutput)) {
-                        int len;
-                        final byte[] ioBuffer = new byte[64 * 1024];
-                        while ((len = compressedIn.read(ioBuffer)) > 0) {
-                            fileOut.write(ioBuffer, 0, len);
+                    copyStreamToFile(compressedIn, decompressedOutput);
+                }
+            }
+        }
+    }
+
+    // Block container format (".blocks"): the data is split into fixed-size blocks, each compressed
+    // on its own, so that they can be decoded in parallel. All numbers are big-endian:
+    //   "CCBK", u16 format version, u8 method (0 = deflate/zlib, 1 = LZMA), u8 reserved,
+    //   i32 block size, i64 total decompressed size, i32 block count,
+    //   i32 compressed length of each block, followed by the compressed blocks, in order.
+    // Every block but the last decompresses to exactly the block size. Written by HashGen.
+    // Containers are decoded before their hash can be checked, so all sizes in the header are
+    // bounded before anything is allocated: a corrupt (or hostile) mirror must not exhaust memory.
+    private static final byte[] BLOCKS_MAGIC = {'C', 'C', 'B', 'K'};
+    private static final int BLOCKS_FORMAT_VERSION = 1,
+            BLOCKS_METHOD_DEFLATE = 0,
+            BLOCKS_METHOD_LZMA = 1,
+            BLOCKS_HEADER_LENGTH = 4 + 2 + 1 + 1 + 4 + 8 + 4,
+            MIN_BLOCK_SIZE = 4 * 1024,
+            // LzmaInputStream never allocates a smaller dictionary than this
+            LZMA_MIN_DICTIONARY_SIZE = 4 * 1024,
+            MAX_BLOCK_SIZE = 16 * 1024 * 1024,
+            // How many compressed bytes a streamed container may have buffered ahead of the reader
+            MAX_READ_AHEAD_BYTES = 32 * 1024 * 1024;
+    private static final long MAX_BLOCKS_DECOMPRESSED_SIZE = 1024L * 1024 * 1024;
+    // One pool (one thread per core) is shared by all containers being decoded at the same time.
+    private static ExecutorService blockExecutor;
+
+    // Decompresses a block container on all cores (see getBlockExecutor). Each block is read,
+    // decoded and written (with positional writes) independently.
+    private static void decompressBlocks(final Logger logger, final File compressedInput, final File decompressedOutput)
+            throws IOException {
+        if (logger == null) {
+            throw new NullPointerException("logger");
+        }
+        if (compressedInput == null) {
+            throw new NullPointerException("compressedInput");
+        }
+        if (decompressedOutput == null) {
+            throw new NullPointerException("decompressedOutput");
+        }
+        try (final FileChannel in = FileChannel.open(compressedInput.toPath(), StandardOpenOption.READ);
+                final FileChannel out = FileChannel.open(decompressedOutput.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer headerBuffer = ByteBuffer.allocate(BLOCKS_HEADER_LENGTH);
+            readFully(in, headerBuffer, 0);
+            final BlockHeader header = BlockHeader.read(new DataInputStream(
+                    new ByteArrayInputStream(headerBuffer.array())));
+            final long indexEnd = BLOCKS_HEADER_LENGTH + header.blockCount * 4L;
+            if (in.size() < indexEnd) {
+                throw new EOFException("Block container is truncated");
+            }
+            final ByteBuffer indexBuffer = ByteBuffer.allocate(header.blockCount * 4);
+            readFully(in, indexBuffer, BLOCKS_HEADER_LENGTH);
+            header.readIndex(new DataInputStream(new ByteArrayInputStream(indexBuffer.array())));
+            if (indexEnd + header.compressedSize != in.size()) {
+                throw new IOException("Block container size (" + in.size() + ") does not match its index ("
+                        + (indexEnd + header.compressedSize) + ")");
+            }
+
+            final ExecutorService executor = getBlockExecutor();
+            final List<Future<?>> results = new ArrayList<>(header.blockCount);
+            try {
+                long compressedOffset = BLOCKS_HEADER_LENGTH + indexBuffer.capacity();
+                for (int i = 0; i < header.blockCount; i++) {
+                    final int block = i;
+                    final long blockOffset = compressedOffset;
+                    compressedOffset += header.compressedLengths[i];
+                    results.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            final ByteBuffer compressed = ByteBuffer.allocate(header.compressedLengths[block]);
+                            readFully(in, compressed, blockOffset);
+                            final byte[] decompressed = decodeBlock(logger, header, block, compressed.array());
+                            final ByteBuffer buffer = ByteBuffer.wrap(decompressed);
+                            long position = (long) block * header.blockSize;
+                            while (buffer.hasRemaining()) {
+                                position += out.write(buffer, position);
+                            }
+                            return null;
                         }
+                    }));
+                }
+                for (final Future<?> result : results) {
+                    getBlockResult(result);
+                }
+            } finally {
+                // On failure, keep the remaining blocks from being decoded.
+                for (final Future<?> result : results) {
+                    result.cancel(false);
+                }
+            }
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            final int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException("Block container is truncated");
+            }
+            position += count;
+        }
+    }
+
+    private static byte[] decodeBlock(final Logger logger, final BlockHeader header, final int block,
+            final byte[] compressed)
+            throws IOException {
+        final int expectedLength = header.getDecompressedLength(block);
+        final byte[] decompressed = new byte[expectedLength];
+        int length = 0;
+        if (header.method == BLOCKS_METHOD_DEFLATE) {
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                while (length < expectedLength && !inflater.finished()) {
+                    final int count = inflater.inflate(decompressed, length, expectedLength - length);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
                     }
+                    length += count;
+                }
+                if (!inflater.finished()) {
+                    throw new IOException("Block " + block + " is truncated or too long");
+                }
+            } catch (final DataFormatException ex) {
+                throw new IOException("Block " + block + " is corrupted", ex);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            limitLzmaDictionary(block, compressed, expectedLength);
+            try (final InputStream lzmaIn = makeLzmaInputStream(logger, new ByteArrayInputStream(compressed))) {
+                int count;
+                while (length < expectedLength
+                        && (count = lzmaIn.read(decompressed, length, expectedLength - length)) != -1) {
+                    length += count;
+                }
+            }
+        }
+        if (length != expectedLength) {
+            throw new IOException("Block " + block + " decompressed to " + length
+                    + " bytes instead of " + expectedLength);
+        }
+        return decompressed;
+    }
+
+    // LzmaInputStream allocates a dictionary of the size given in the stream header, which is
+    // often far larger than a block (e.g. 64 MB for "lzma -9"). A block can never refer back
+    // further than its own length, so the header is rewritten to ask for no more than that.
+    private static void limitLzmaDictionary(final int block, final byte[] compressed, final int decompressedLength)
+            throws IOException {
+        // LZMA header: 1 byte of properties, followed by dictionary size (32-bit little-endian)
+        if (compressed.length < 5) {
+            throw new IOException("Block " + block + " is truncated");
+        }
+        final long dictionarySize = (compressed[1] & 0xFFL)
+                | ((compressed[2] & 0xFFL) << 8)
+                | ((compressed[3] & 0xFFL) << 16)
+                | ((compressed[4] & 0xFFL) << 24);
+        final int limit = Math.max(decompressedLength, LZMA_MIN_DICTIONARY_SIZE);
+        if (dictionarySize > limit) {
+            compressed[1] = (byte) limit;
+            compressed[2] = (byte) (limit >>> 8);
+            compressed[3] = (byte) (limit >>> 16);
+            compressed[4] = (byte) (limit >>> 24);
+        }
+    }
+
+    // If given stream starts with a block container of LZMA blocks, returns how much memory its
+    // decoders' dictionaries may take up at once (one per decoder thread, each at most one block).
+    // Returns 0 for other streams. Stream must support mark/reset; its position is not changed.
+    public static long getBlockDecoderMemory(final InputStream stream)
+            throws IOException {
+        if (stream == null) {
+            throw new NullPointerException("stream");
+        }
+        final byte[] headerBytes = new byte[BLOCKS_HEADER_LENGTH];
+        stream.mark(headerBytes.length);
+        int bytesRead = 0;
+        try {
+            while (bytesRead < headerBytes.length) {
+                final int len = stream.read(headerBytes, bytesRead, headerBytes.length - bytesRead);
+                if (len == -1) {
+                    return 0;
                 }
+                bytesRead += len;
             }
+        } finally {
+            stream.reset();
+        }
+        final BlockHeader header;
+        try {
+            header = BlockHeader.read(new DataInputStream(new ByteArrayInputStream(headerBytes)));
+        } catch (final IOException ex) {
+            // Not a valid container. Decoding will fail later, without allocating anything.
+            return 0;
+        }
+        if (header.method != BLOCKS_METHOD_LZMA) {
+            return 0;
+        }
+        final int decoders = Math.min(header.blockCount, getBlockDecoderThreadCount());
+        return (long) decoders * Math.max(header.blockSize, LZMA_MIN_DICTIONARY_SIZE);
+    }
+
+    private static synchronized ExecutorService getBlockExecutor() {
+        if (blockExecutor == null) {
+            blockExecutor = Executors.newFixedThreadPool(getBlockDecoderThreadCount(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "BlockDecoder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return blockExecutor;
+    }
+
+    // Most blocks that are ever decoded at the same time (across all containers).
+    public static int getBlockDecoderThreadCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static <T> T getBlockResult(final Future<T> result)
+            throws IOException {
+        try {
+            return result.get();
+        } catch (final InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while decoding blocks");
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Error decoding block", ex.getCause());
+        }
+    }
+
+    private final static class BlockHeader {
+
+        int method, blockSize, blockCount;
+        long decompressedSize;
+        int[] compressedLengths;
+        // sum of compressedLengths
+        long compressedSize;
+
+        static BlockHeader read(final DataInputStream in)
+                throws IOException {
+            final byte[] magic = new byte[BLOCKS_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, BLOCKS_MAGIC)) {
+                throw new IOException("Not a block container");
+            }
+            final int version = in.readUnsignedShort();
+            if (version != BLOCKS_FORMAT_VERSION) {
+                throw new IOException("Unsupported block container version: " + version);
+            }
+            final BlockHeader header = new BlockHeader();
+            header.method = in.readUnsignedByte();
+            in.readUnsignedByte(); // reserved
+            header.blockSize = in.readInt();
+            header.decompressedSize = in.readLong();
+            header.blockCount = in.readInt();
+            if (header.method != BLOCKS_METHOD_DEFLATE && header.method != BLOCKS_METHOD_LZMA) {
+                throw new IOException("Unsupported block compression method: " + header.method);
+            }
+            if (header.blockSize < MIN_BLOCK_SIZE || header.blockSize > MAX_BLOCK_SIZE
+                    || header.decompressedSize < 0 || header.decompressedSize > MAX_BLOCKS_DECOMPRESSED_SIZE
+                    || header.blockCount != (header.decompressedSize + header.blockSize - 1) / header.blockSize) {
+                throw new IOException("Malformed block container header");
+            }
+            return header;
+        }
+
+        void readIndex(final DataInputStream in)
+                throws IOException {
+            final int maxLength = getMaxCompressedLength();
+            compressedLengths = new int[blockCount];
+            compressedSize = 0;
+            for (int i = 0; i < blockCount; i++) {
+                compressedLengths[i] = in.readInt();
+                if (compressedLengths[i] < 0 || compressedLengths[i] > maxLength) {
+                    throw new IOException("Malformed block container index");
+                }
+                compressedSize += compressedLengths[i];
+            }
+        }
+
+        // Neither deflate nor LZMA expand data by anywhere near this much.
+        int getMaxCompressedLength() {
+            return blockSize + blockSize / 8 + 1024;
+        }
+
+        int getDecompressedLength(final int block) {
+            return (int) Math.min(blockSize, decompressedSize - (long) block * blockSize);
+        }
+    }
+
+    // Decodes a block container from a stream. Blocks are read in order, and handed to worker
+    // threads as they arrive, so that several are being decoded while the next ones download.
+    private final static class BlockContainerInputStream extends InputStream {
+
+        private final Logger logger;
+        private final InputStream source;
+        private final BlockHeader header;
+        private final ExecutorService executor;
+        private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+        private final int readAhead;
+        private int nextBlockToRead;
+        private byte[] currentBlock = new byte[0];
+        private int currentPosition;
+
+        BlockContainerInputStream(final Logger logger, final InputStream source)
+                throws IOException {
+            this.logger = logger;
+            this.source = source;
+            final DataInputStream dataIn = new DataInputStream(source);
+            this.header = BlockHeader.read(dataIn);
+            this.header.readIndex(dataIn);
+            this.executor = getBlockExecutor();
+            final int readAheadLimit = Math.min(Runtime.getRuntime().availableProcessors() * 2,
+                    MAX_READ_AHEAD_BYTES / header.getMaxCompressedLength());
+            this.readAhead = Math.max(1, Math.min(header.blockCount, readAheadLimit));
+        }
+
+        // Makes sure that currentBlock has unread bytes. Returns false at the end of the data.
+        private boolean fill()
+                throws IOException {
+            while (currentPosition >= currentBlock.length) {
+                while (pendingBlocks.size() < readAhead && nextBlockToRead < header.blockCount) {
+                    final int block = nextBlockToRead++;
+                    final byte[] compressed = new byte[header.compressedLengths[block]];
+                    new DataInputStream(source).readFully(compressed);
+                    pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            return decodeBlock(logger, header, block, compressed);
+                        }
+                    }));
+                }
+                if (pendingBlocks.isEmpty()) {
+                    // All blocks listed in the index have been read: that must be the whole container.
+                    if (source.read() != -1) {
+                        throw new IOException("Block container is larger than its index says");
+                    }
+                    return false;
+                }
+                currentBlock = getBlockResult(pendingBlocks.poll());
+                currentPosition = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read()
+                throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return currentBlock[currentPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length)
+                throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int count = Math.min(length, currentBlock.length - currentPosition);
+            System.arraycopy(currentBlock, currentPosition, buffer, offset, count);
+            currentPosition += count;
+            return count;
+        }
+
+        @Override
+        public void close()
+                throws IOException {
+            for (final Future<byte[]> pendingBlock : pendingBlocks) {
+                pendingBlock.cancel(false);
+            }
+            pendingBlocks.clear();
+            source.close();
         }
     }
 
@@ -193,6 +888,34 @@ public class SharedUpdaterCode {
         }
     }
 
+    // Unpacks a Pack200 stream into a jar file. Note that Pack200 closes the input stream.
+    private static void unpack200(final InputStream compressedInput, final File decompressedOutput)
+            throws FileNotFoundException, IOException {
+        if (compressedInput == null) {
+            throw new NullPointerException("compressedInput");
+        }
+        if (decompressedOutput == null) {
+            throw new NullPointerException("decompressedOutput");
+        }
+        try (final FileOutputStream fostream = new FileOutputStream(decompressedOutput)) {
+            try (final JarOutputStream jostream = new JarOutputStream(fostream)) {
+                final Pack200.Unpacker unpacker = Pack200.newUnpacker();
+                unpacker.unpack(compressedInput, jostream);
+            }
+        }
+    }
+
+    private static void copyStreamToFile(final InputStream in, final File outputFile)
+            throws FileNotFoundException, IOException {
+        try (final OutputStream fileOut = new FileOutputStream(outputFile)) {
+            int len;
+            final byte[] ioBuffer = ioBuffers.get();
+            while ((len = in.read(ioBuffer)) > 0) {
+                fileOut.write(ioBuffer, 0, len);
+            }
+        }
+    }
+
     public enum OperatingSystem {
 
         NIX,
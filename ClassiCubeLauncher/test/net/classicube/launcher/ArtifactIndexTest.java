@@ -0,0 +1,198 @@
+package net.classicube.launcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ArtifactIndexTest {
+
+    private static final String MANIFEST_HASH = "0123456789abcdef0123456789abcdef01234567";
+    private static final String FILE_HASH = "89abcdef0123456789abcdef0123456789abcdef";
+    private static final String CHUNK_HASH_1 = "1111111111111111111111111111111111111111";
+    private static final String CHUNK_HASH_2 = "2222222222222222222222222222222222222222";
+
+    @Test
+    public void textRowsWithOptionalColumns() {
+        final HashMap<String, ArtifactIndex.Entry> entries = ArtifactIndex.parseText(
+                // What old launchers read: name, size and manifest hash only
+                "lwjgl.jar.pack.lzma 1000 " + MANIFEST_HASH.toUpperCase() + "\r\n"
+                + "\n"
+                // Chunk hashes, but no unpacked size or file hash
+                + "jinput.jar.pack.lzma 2000 " + MANIFEST_HASH + " 512:" + CHUNK_HASH_1 + "\n"
+                // Every column, with extra spaces between them
+                + "Client.jar.pack.lzma  3000 " + MANIFEST_HASH + " 512:" + CHUNK_HASH_1 + "," + CHUNK_HASH_2
+                + "  9000 " + FILE_HASH);
+        assertEquals(3, entries.size());
+
+        final ArtifactIndex.Entry minimal = entries.get("lwjgl.jar.pack.lzma");
+        assertEquals("lwjgl.jar.pack.lzma", minimal.name);
+        assertEquals(1000, minimal.size);
+        assertEquals(MANIFEST_HASH, minimal.hash);
+        assertEquals(-1, minimal.unpackedSize);
+        assertNull(minimal.fileHash);
+        assertNull(minimal.chunkHashes);
+
+        final ArtifactIndex.Entry chunksOnly = entries.get("jinput.jar.pack.lzma");
+        assertEquals(512, chunksOnly.chunkSize);
+        assertEquals(Arrays.asList(CHUNK_HASH_1), chunksOnly.chunkHashes);
+        assertEquals(-1, chunksOnly.unpackedSize);
+        assertNull(chunksOnly.fileHash);
+
+        // Looked up by lower-cased name, but keeps the name as written
+        final ArtifactIndex.Entry full = entries.get("client.jar.pack.lzma");
+        assertEquals("Client.jar.pack.lzma", full.name);
+        assertEquals(3000, full.size);
+        assertEquals(Arrays.asList(CHUNK_HASH_1, CHUNK_HASH_2), full.chunkHashes);
+        assertEquals(9000, full.unpackedSize);
+        assertEquals(FILE_HASH, full.fileHash);
+    }
+
+    @Test
+    public void malformedTextRowsAreSkipped() {
+        final HashMap<String, ArtifactIndex.Entry> entries = ArtifactIndex.parseText(
+                "too-short 1000\n"
+                + "lonely\n"
+                + "bad-size.jar abc " + MANIFEST_HASH + "\n"
+                + "bad-chunks.jar 1000 " + MANIFEST_HASH + " " + CHUNK_HASH_1 + "\n"
+                + "zero-chunk-size.jar 1000 " + MANIFEST_HASH + " 0:" + CHUNK_HASH_1 + "\n"
+                + "good.jar 1000 " + MANIFEST_HASH + "\n");
+        assertEquals(4, entries.size());
+        assertTrue(entries.containsKey("good.jar"));
+        // Unparseable sizes become unknown, and unparseable chunk lists are ignored.
+        assertEquals(-1, entries.get("bad-size.jar").size);
+        assertNull(entries.get("bad-chunks.jar").chunkHashes);
+        assertNull(entries.get("zero-chunk-size.jar").chunkHashes);
+    }
+
+    @Test
+    public void binaryIndexIsParsed() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = writeHeader(bytes, 2);
+        writeEntry(out, "Client.jar.pack.lzma", MANIFEST_HASH, 512, CHUNK_HASH_1, CHUNK_HASH_2);
+        writeEntry(out, "launcher.jar.pack.lzma", null, 0);
+        out.flush();
+
+        final HashMap<String, ArtifactIndex.Entry> entries = ArtifactIndex.parseBinary(bytes.toByteArray());
+        assertEquals(2, entries.size());
+        final ArtifactIndex.Entry client = entries.get("client.jar.pack.lzma");
+        assertEquals("Client.jar.pack.lzma", client.name);
+        assertEquals(3000, client.size);
+        assertEquals(9000, client.unpackedSize);
+        assertEquals(MANIFEST_HASH, client.hash);
+        assertEquals(FILE_HASH, client.fileHash);
+        assertEquals(512, client.chunkSize);
+        assertEquals(Arrays.asList(CHUNK_HASH_1, CHUNK_HASH_2), client.chunkHashes);
+
+        final ArtifactIndex.Entry launcher = entries.get("launcher.jar.pack.lzma");
+        assertEquals(ArtifactIndex.NO_MANIFEST_HASH, launcher.hash);
+        assertNull(launcher.chunkHashes);
+    }
+
+    @Test
+    public void truncatedBinaryIndexIsRejected() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = writeHeader(bytes, 2);
+        writeEntry(out, "client.jar.pack.lzma", MANIFEST_HASH, 512, CHUNK_HASH_1, CHUNK_HASH_2);
+        writeEntry(out, "lwjgl.jar.pack.lzma", null, 512, CHUNK_HASH_1);
+        out.flush();
+        final byte[] index = bytes.toByteArray();
+
+        for (int length = 0; length < index.length; length++) {
+            assertRejected(Arrays.copyOf(index, length));
+        }
+    }
+
+    @Test
+    public void oversizedBinaryCountsAreRejected() throws Exception {
+        for (final int count : new int[]{Integer.MAX_VALUE, -1, 2}) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = writeHeader(bytes, count);
+            writeEntry(out, "client.jar.pack.lzma", MANIFEST_HASH, 0);
+            out.flush();
+            assertRejected(bytes.toByteArray());
+        }
+
+        for (final int chunkCount : new int[]{Integer.MAX_VALUE, -1, 2}) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = writeHeader(bytes, 1);
+            writeEntryStart(out, "client.jar.pack.lzma", MANIFEST_HASH);
+            out.writeInt(512);
+            out.writeInt(chunkCount);
+            out.write(fromHex(CHUNK_HASH_1));
+            out.flush();
+            assertRejected(bytes.toByteArray());
+        }
+    }
+
+    @Test
+    public void otherBinaryFormatsAreRejected() throws Exception {
+        assertRejected("not an index".getBytes("US-ASCII"));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(ArtifactIndex.BINARY_MAGIC);
+        out.writeShort(ArtifactIndex.BINARY_FORMAT_VERSION + 1);
+        out.writeInt(0);
+        out.flush();
+        assertRejected(bytes.toByteArray());
+    }
+
+    private static void assertRejected(final byte[] index) {
+        try {
+            ArtifactIndex.parseBinary(index);
+            fail("Parsed a malformed index of " + index.length + " bytes");
+        } catch (final IOException ex) {
+            // Expected
+        }
+    }
+
+    private static DataOutputStream writeHeader(final ByteArrayOutputStream bytes, final int count)
+            throws IOException {
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(ArtifactIndex.BINARY_MAGIC);
+        out.writeShort(ArtifactIndex.BINARY_FORMAT_VERSION);
+        out.writeInt(count);
+        return out;
+    }
+
+    // Same layout as HashGen writes; manifestHash may be null.
+    private static void writeEntry(final DataOutputStream out, final String name, final String manifestHash,
+            final int chunkSize, final String... chunkHashes)
+            throws IOException {
+        writeEntryStart(out, name, manifestHash);
+        out.writeInt(chunkSize);
+        out.writeInt(chunkHashes.length);
+        for (final String chunkHash : chunkHashes) {
+            out.write(fromHex(chunkHash));
+        }
+    }
+
+    private static void writeEntryStart(final DataOutputStream out, final String name, final String manifestHash)
+            throws IOException {
+        out.writeUTF(name);
+        out.writeLong(3000);
+        out.writeLong(9000);
+        if (manifestHash != null) {
+            out.writeByte(ArtifactIndex.FLAG_HAS_MANIFEST);
+            out.write(fromHex(manifestHash));
+        } else {
+            out.writeByte(0);
+        }
+        out.write(fromHex(FILE_HASH));
+    }
+
+    private static byte[] fromHex(final String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
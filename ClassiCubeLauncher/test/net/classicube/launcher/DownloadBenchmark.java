@@ -0,0 +1,292 @@
+package net.classicube.launcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+// Measures how long an update's worth of small files takes to download, with the old download
+// code (URL.openStream on 5 threads) and with HttpUtil.openDownload/finishDownload (5 threads,
+// and 8 threads like UpdateTask's scheduler). A connection that is not reused costs one more
+// setup, so the number of new connections per run is printed too.
+// Not a unit test: run it by hand, e.g.
+// "java -cp build/classes:build/test/classes net.classicube.launcher.DownloadBenchmark".
+// Files are served from a local server, through a proxy that delays every new connection
+// (standing in for TCP and TLS handshakes) and every response (standing in for server latency).
+public final class DownloadBenchmark {
+
+    private static final int FILE_COUNT = 60, MIN_FILE_SIZE = 10 * 1024, MAX_FILE_SIZE = 300 * 1024;
+    private static final int WARMUP_RUNS = 1, TIMED_RUNS = 5;
+    // {new connection delay, response delay}, in milliseconds
+    private static final int[][] DELAYS = {{0, 0}, {50, 20}, {150, 50}};
+    private static volatile int connectDelayMillis, responseDelayMillis;
+
+    public static void main(final String[] args)
+            throws Exception {
+        HttpUtil.initConnectionPool();
+        LogUtil.getLogger().setLevel(Level.WARNING);
+        final byte[][] files = makeFiles();
+        long totalSize = 0;
+        for (final byte[] file : files) {
+            totalSize += file.length;
+        }
+        final HttpServer server = startServer(files);
+        final ConnectionDelayingProxy proxy = new ConnectionDelayingProxy(server.getAddress().getPort());
+        final String baseUrl = "http://127.0.0.1:" + proxy.getPort() + "/";
+        System.out.printf("%d files, %.2f MB, %d cores, JVM %s%n", FILE_COUNT, totalSize / (1024.0 * 1024),
+                Runtime.getRuntime().availableProcessors(), System.getProperty("java.version"));
+        try {
+            for (final int[] delays : DELAYS) {
+                connectDelayMillis = delays[0];
+                responseDelayMillis = delays[1];
+                System.out.printf("Connection setup %d ms, response delay %d ms:%n", delays[0], delays[1]);
+                run("openStream, 5 threads (old)", baseUrl, 5, OLD_DOWNLOADER, proxy);
+                run("openDownload, 5 threads", baseUrl, 5, KEPT_ALIVE_DOWNLOADER, proxy);
+                run("openDownload, 8 threads", baseUrl, 8, KEPT_ALIVE_DOWNLOADER, proxy);
+            }
+        } finally {
+            proxy.close();
+            server.stop(0);
+        }
+    }
+
+    private interface Downloader {
+
+        long download(String url) throws IOException;
+    }
+
+    // What UpdateTask did before downloads went through HttpUtil
+    private static final Downloader OLD_DOWNLOADER = new Downloader() {
+        @Override
+        public long download(final String url) throws IOException {
+            try (final InputStream in = new URL(url).openStream()) {
+                return drain(in);
+            }
+        }
+    };
+
+    private static final Downloader KEPT_ALIVE_DOWNLOADER = new Downloader() {
+        @Override
+        public long download(final String url) throws IOException {
+            final HttpURLConnection connection = HttpUtil.openDownload(url);
+            boolean completed = false;
+            try {
+                final long length;
+                try (final InputStream in = connection.getInputStream()) {
+                    length = drain(in);
+                }
+                completed = true;
+                return length;
+            } finally {
+                HttpUtil.finishDownload(connection, completed);
+            }
+        }
+    };
+
+    private static void run(final String name, final String baseUrl, final int threads,
+            final Downloader downloader, final ConnectionDelayingProxy proxy)
+            throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long totalNanos = 0, bestNanos = Long.MAX_VALUE;
+            int connections = 0;
+            for (int run = 0; run < WARMUP_RUNS + TIMED_RUNS; run++) {
+                final int connectionsBefore = proxy.getConnectionCount();
+                final List<Future<Long>> results = new ArrayList<>(FILE_COUNT);
+                final long start = System.nanoTime();
+                for (int i = 0; i < FILE_COUNT; i++) {
+                    final String url = baseUrl + i;
+                    results.add(executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws IOException {
+                            return downloader.download(url);
+                        }
+                    }));
+                }
+                for (final Future<Long> result : results) {
+                    result.get();
+                }
+                final long nanos = System.nanoTime() - start;
+                if (run >= WARMUP_RUNS) {
+                    totalNanos += nanos;
+                    bestNanos = Math.min(bestNanos, nanos);
+                    connections += proxy.getConnectionCount() - connectionsBefore;
+                }
+            }
+            System.out.printf("  %-36s %6d ms (best %d), %.1f new connections per run%n", name,
+                    totalNanos / TIMED_RUNS / 1000000, bestNanos / 1000000, (double) connections / TIMED_RUNS);
+        } finally {
+            executor.shutdown();
+        }
+        // Start the next variant without any kept-alive connections from this one.
+        proxy.closeConnections();
+        Thread.sleep(200);
+    }
+
+    private static long drain(final InputStream in)
+            throws IOException {
+        final byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static byte[][] makeFiles() {
+        final Random random = new Random(1);
+        final byte[][] files = new byte[FILE_COUNT][];
+        for (int i = 0; i < FILE_COUNT; i++) {
+            files[i] = new byte[MIN_FILE_SIZE + random.nextInt(MAX_FILE_SIZE - MIN_FILE_SIZE)];
+            random.nextBytes(files[i]);
+        }
+        return files;
+    }
+
+    private static HttpServer startServer(final byte[][] files)
+            throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                sleepQuietly(responseDelayMillis);
+                final byte[] data = files[Integer.parseInt(exchange.getRequestURI().getPath().substring(1))];
+                exchange.sendResponseHeaders(200, data.length);
+                try (final OutputStream os = exchange.getResponseBody()) {
+                    os.write(data);
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static void sleepQuietly(final int millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Forwards connections to the server, after holding each new one for connectDelayMillis.
+    private static final class ConnectionDelayingProxy {
+
+        private final ServerSocket serverSocket;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final AtomicInteger connectionCount = new AtomicInteger();
+        private final Set<Socket> openSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+        ConnectionDelayingProxy(final int serverPort)
+                throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket client = serverSocket.accept();
+                            connectionCount.incrementAndGet();
+                            openSockets.add(client);
+                            executor.submit(new Runnable() {
+                                @Override
+                                public void run() {
+                                    forward(client, serverPort);
+                                }
+                            });
+                        }
+                    } catch (final IOException ex) {
+                        // Proxy closed
+                    }
+                }
+            });
+        }
+
+        private void forward(final Socket client, final int serverPort) {
+            sleepQuietly(connectDelayMillis);
+            try (final Socket server = new Socket(InetAddress.getLoopbackAddress(), serverPort)) {
+                final Future<?> upstream = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        pipe(client, server);
+                    }
+                });
+                pipe(server, client);
+                upstream.get();
+            } catch (final Exception ex) {
+                // Connection dropped
+            } finally {
+                openSockets.remove(client);
+                try {
+                    client.close();
+                } catch (final IOException ex) {
+                    // Already closed
+                }
+            }
+        }
+
+        // Drops all connections, so that the client can't reuse any of them.
+        void closeConnections() {
+            for (final Socket socket : openSockets) {
+                try {
+                    socket.close();
+                } catch (final IOException ex) {
+                    // Already closed
+                }
+            }
+        }
+
+        private static void pipe(final Socket from, final Socket to) {
+            final byte[] buffer = new byte[64 * 1024];
+            try {
+                final InputStream in = from.getInputStream();
+                final OutputStream out = to.getOutputStream();
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                to.shutdownOutput();
+            } catch (final IOException ex) {
+                // Connection dropped
+            }
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        int getConnectionCount() {
+            return connectionCount.get();
+        }
+
+        void close()
+                throws IOException {
+            serverSocket.close();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package net.classicube.launcher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HttpUtilTest {
+
+    private static final int READ_TIMEOUT_MILLIS = 500;
+
+    @BeforeClass
+    public static void configureHttpUtil() {
+        // Read by HttpUtil and HttpCache when they are first loaded.
+        System.setProperty("classicube.http.readTimeout", Integer.toString(READ_TIMEOUT_MILLIS));
+        System.setProperty("classicube.http.noHedging", "true");
+        System.setProperty("classicube.http.cacheSize", "0");
+    }
+
+    @Test
+    public void timedOutRequestIsRetried() throws Exception {
+        final AtomicInteger requestCount = new AtomicInteger();
+        try (final ServerSocket server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            final Thread serverThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // First request: never answered, so the client's read times out.
+                    try (final Socket stalled = server.accept()) {
+                        readRequest(stalled);
+                        requestCount.incrementAndGet();
+                        // Second request (the retry): answered normally.
+                        try (final Socket socket = server.accept()) {
+                            readRequest(socket);
+                            requestCount.incrementAndGet();
+                            final OutputStream os = socket.getOutputStream();
+                            os.write(("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok")
+                                    .getBytes(StandardCharsets.US_ASCII));
+                            os.flush();
+                        }
+                    } catch (final IOException ex) {
+                        // Client gave up; the assertions below report it.
+                    }
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            final String url = "http://127.0.0.1:" + server.getLocalPort() + "/timeout-test";
+            assertEquals("ok", HttpUtil.downloadString(url, true));
+            assertEquals(2, requestCount.get());
+        }
+    }
+
+    private static void readRequest(final Socket socket) throws IOException {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        String line;
+        do {
+            line = reader.readLine();
+        } while (line != null && !line.isEmpty());
+    }
+}
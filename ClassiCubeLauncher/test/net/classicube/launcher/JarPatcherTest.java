@@ -0,0 +1,223 @@
+package net.classicube.launcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import net.classicube.shared.ChecksumUtil;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JarPatcherTest {
+
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+    private HttpServer server;
+    private File tempDir, baseJar, outputJar;
+    private String newJarHash;
+
+    // Old jar: manifest v1, a.class, b.txt, c.txt
+    // New jar: manifest v2, a.class (changed), c.txt, d.txt (added) -- b.txt is removed
+    @Before
+    public void setUp() throws Exception {
+        tempDir = File.createTempFile("jarpatcher", "");
+        tempDir.delete();
+        tempDir.mkdirs();
+        final Map<String, byte[]> files = new HashMap<>();
+        files.put("/base.jar", makeZip(
+                MANIFEST_NAME, "Manifest-Version: 1.0\r\nImplementation-Version: 1\r\n",
+                "a.class", "old a",
+                "b.txt", "b",
+                "c.txt", "c"));
+        files.put("/good.patch", makeZip(
+                MANIFEST_NAME, "Manifest-Version: 1.0\r\nImplementation-Version: 2\r\n",
+                "a.class", "new a",
+                "d.txt", "d",
+                JarPatcher.REMOVED_LIST_NAME, "b.txt\n"));
+        // Applies cleanly, but produces a jar with a different manifest than expected
+        files.put("/mismatched.patch", makeZip(
+                MANIFEST_NAME, "Manifest-Version: 1.0\r\nImplementation-Version: 3\r\n"));
+        final byte[] garbage = new byte[4096];
+        new Random(42).nextBytes(garbage);
+        files.put("/corrupt.patch", garbage);
+        server = startServer(files);
+
+        baseJar = new File(tempDir, "client.jar");
+        download(getUrl("/base.jar"), baseJar);
+        outputJar = new File(tempDir, "client.jar.staging");
+
+        final File newJar = new File(tempDir, "expected.jar");
+        writeFile(newJar, makeZip(
+                MANIFEST_NAME, "Manifest-Version: 1.0\r\nImplementation-Version: 2\r\n",
+                "a.class", "new a",
+                "c.txt", "c",
+                "d.txt", "d"));
+        newJarHash = ChecksumUtil.computeManifestHash(newJar);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        final File[] leftovers = tempDir.listFiles();
+        if (leftovers != null) {
+            for (final File file : leftovers) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Test
+    public void patchAddsRemovesAndReplacesEntries() throws Exception {
+        assertTrue(JarPatcher.tryPatch(getUrl("/good.patch"), baseJar, outputJar, newJarHash, downloader));
+        assertEquals(newJarHash, ChecksumUtil.computeManifestHash(outputJar));
+        try (final ZipFile zip = new ZipFile(outputJar)) {
+            final List<String> names = new ArrayList<>();
+            for (final ZipEntry entry : Collections.list(zip.entries())) {
+                names.add(entry.getName());
+            }
+            // Old entries keep their order; new ones come last.
+            assertEquals(Arrays.asList(MANIFEST_NAME, "a.class", "c.txt", "d.txt"), names);
+            assertArrayEquals(bytes("new a"), readEntry(zip, "a.class"));
+            assertArrayEquals(bytes("c"), readEntry(zip, "c.txt"));
+            assertArrayEquals(bytes("d"), readEntry(zip, "d.txt"));
+        }
+        assertOnlyExpectedFilesLeft();
+    }
+
+    @Test
+    public void mismatchedResultFallsBack() throws Exception {
+        assertFalse(JarPatcher.tryPatch(getUrl("/mismatched.patch"), baseJar, outputJar, newJarHash, downloader));
+        assertOnlyExpectedFilesLeft();
+    }
+
+    @Test
+    public void corruptPatchFallsBack() throws Exception {
+        assertFalse(JarPatcher.tryPatch(getUrl("/corrupt.patch"), baseJar, outputJar, newJarHash, downloader));
+        assertOnlyExpectedFilesLeft();
+    }
+
+    @Test
+    public void missingPatchFallsBack() throws Exception {
+        assertFalse(JarPatcher.tryPatch(getUrl("/missing.patch"), baseJar, outputJar, newJarHash, downloader));
+        assertOnlyExpectedFilesLeft();
+    }
+
+    // Downloaded patches are temporary, whether they worked or not.
+    private void assertOnlyExpectedFilesLeft() {
+        for (final File file : tempDir.listFiles()) {
+            assertFalse("Patch file left behind: " + file, file.getName().endsWith(".patch"));
+        }
+    }
+
+    // Same as what UpdateTask does, minus decompression (patches are served uncompressed here).
+    private final JarPatcher.PatchDownloader downloader = new JarPatcher.PatchDownloader() {
+        @Override
+        public void download(final String patchUrl, final File patchFile) throws IOException {
+            JarPatcherTest.download(patchUrl, patchFile);
+        }
+    };
+
+    private static void download(final String url, final File file) throws IOException {
+        final HttpURLConnection connection = HttpUtil.openDownload(url);
+        boolean completed = false;
+        try {
+            try (final InputStream in = connection.getInputStream();
+                    final OutputStream out = new FileOutputStream(file)) {
+                final byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            }
+            completed = true;
+        } finally {
+            HttpUtil.finishDownload(connection, completed);
+        }
+    }
+
+    private String getUrl(final String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    // Takes pairs of entry names and contents.
+    private static byte[] makeZip(final String... namesAndContents) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(namesAndContents[i]));
+                zip.write(bytes(namesAndContents[i + 1]));
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readEntry(final ZipFile zip, final String name) throws IOException {
+        try (final InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] bytes(final String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeFile(final File file, final byte[] data) throws IOException {
+        try (final OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private static HttpServer startServer(final Map<String, byte[]> files) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final byte[] data = files.get(exchange.getRequestURI().getPath());
+                if (data == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.sendResponseHeaders(200, data.length);
+                try (final OutputStream os = exchange.getResponseBody()) {
+                    os.write(data);
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+}
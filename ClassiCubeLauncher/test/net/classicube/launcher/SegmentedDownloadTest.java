@@ -0,0 +1,217 @@
+package net.classicube.launcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.classicube.shared.ChecksumUtil;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class SegmentedDownloadTest {
+
+    private static final int FILE_SIZE = 3 * 1024 * 1024 + 123;
+    private static final int SEGMENT_COUNT = 4;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    @Test
+    public void segmentsAreRequestedAtOnceAndReadInOrder() throws Exception {
+        final byte[] data = makeData();
+        // The first segment is only sent once every segment has been requested, which could
+        // never happen if segments were fetched one after another.
+        final CountDownLatch allRequested = new CountDownLatch(SEGMENT_COUNT);
+        final HttpServer server = startServer(data, true, allRequested);
+        try {
+            assertArrayEquals(data, download(server, data.length));
+            assertEquals(0, allRequested.getCount());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void serverWithoutRangesSendsWholeFile() throws Exception {
+        final byte[] data = makeData();
+        final HttpServer server = startServer(data, false, null);
+        try {
+            assertArrayEquals(data, download(server, data.length));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    // A corrupt chunk can't be re-fetched on its own without ranges, so the download must fail
+    // instead of waiting forever for a segment that nobody is downloading.
+    @Test(timeout = 10000)
+    public void serverWithoutRangesFailsOnCorruptChunk() throws Exception {
+        final byte[] data = makeData();
+        final List<String> chunkHashes = makeChunkHashes(data, CHUNK_SIZE);
+        chunkHashes.set(1, "0000000000000000000000000000000000000000");
+        final HttpServer server = startServer(data, false, null);
+        try {
+            download(server, data.length, CHUNK_SIZE, chunkHashes);
+            fail("Corrupt chunk was not detected");
+        } catch (final IOException ex) {
+            // expected
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    // A corrupt chunk is fetched again, and its rejected bytes don't count towards progress.
+    @Test
+    public void corruptChunkIsFetchedAgain() throws Exception {
+        final byte[] data = makeData();
+        final HttpServer server = startServer(data, true, null, 1);
+        try {
+            assertArrayEquals(data, download(server, data.length, CHUNK_SIZE, makeChunkHashes(data, CHUNK_SIZE)));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    // A worker that dies from an Error must still wake up the reader.
+    @Test(timeout = 10000)
+    public void errorInWorkerFailsDownload() throws Exception {
+        final byte[] data = makeData();
+        final HttpServer server = startServer(data, true, null);
+        final String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+        final SegmentedDownload download = new SegmentedDownload(url, data.length, 0, null,
+                new SegmentedDownload.ProgressListener() {
+                    @Override
+                    public void onBytesTransferred(final long count) {
+                        throw new OutOfMemoryError("Simulated");
+                    }
+                });
+        final File file = File.createTempFile("segments", ".tmp");
+        try (final InputStream in = download.start(file)) {
+            in.read();
+            fail("Error in worker was not reported");
+        } catch (final IOException ex) {
+            // expected
+        } finally {
+            file.delete();
+            server.stop(0);
+        }
+    }
+
+    private static byte[] download(final HttpServer server, final long size) throws IOException {
+        return download(server, size, 0, null);
+    }
+
+    private static byte[] download(final HttpServer server, final long size, final long chunkSize,
+            final List<String> chunkHashes) throws IOException {
+        final String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+        final AtomicLong transferred = new AtomicLong();
+        final SegmentedDownload download = new SegmentedDownload(url, size, chunkSize, chunkHashes,
+                new SegmentedDownload.ProgressListener() {
+                    @Override
+                    public void onBytesTransferred(final long count) {
+                        transferred.addAndGet(count);
+                    }
+                });
+        final File file = File.createTempFile("segments", ".tmp");
+        try (final InputStream in = download.start(file)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[10000];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            assertEquals(size, transferred.get());
+            return out.toByteArray();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] makeData() {
+        final byte[] data = new byte[FILE_SIZE];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    private static List<String> makeChunkHashes(final byte[] data, final int chunkSize) {
+        final List<String> hashes = new ArrayList<>();
+        for (int start = 0; start < data.length; start += chunkSize) {
+            final MessageDigest digest = ChecksumUtil.createSha1();
+            digest.update(data, start, Math.min(chunkSize, data.length - start));
+            hashes.add(ChecksumUtil.toHexString(digest.digest()));
+        }
+        return hashes;
+    }
+
+    private static HttpServer startServer(final byte[] data, final boolean supportRanges,
+            final CountDownLatch allRequested) throws IOException {
+        return startServer(data, supportRanges, allRequested, 0);
+    }
+
+    // corruptions: how many responses for the second chunk get one byte flipped
+    private static HttpServer startServer(final byte[] data, final boolean supportRanges,
+            final CountDownLatch allRequested, final int corruptions) throws IOException {
+        final AtomicInteger corruptionsLeft = new AtomicInteger(corruptions);
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/file", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final String range = exchange.getRequestHeaders().getFirst("Range");
+                int first = 0, last = data.length - 1;
+                if (supportRanges && range != null) {
+                    final String[] bounds = range.substring("bytes=".length()).split("-");
+                    first = Integer.parseInt(bounds[0]);
+                    last = Math.min(last, Integer.parseInt(bounds[1]));
+                    if (allRequested != null) {
+                        allRequested.countDown();
+                    }
+                    if (first == 0 && allRequested != null && !awaitQuietly(allRequested)) {
+                        exchange.sendResponseHeaders(503, -1);
+                        exchange.close();
+                        return;
+                    }
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + first + "-" + last + "/" + data.length);
+                    exchange.sendResponseHeaders(206, last - first + 1);
+                } else {
+                    exchange.sendResponseHeaders(200, data.length);
+                }
+                final byte[] body = Arrays.copyOfRange(data, first, last + 1);
+                if (first == CHUNK_SIZE && corruptionsLeft.getAndDecrement() > 0) {
+                    body[0] ^= 1;
+                }
+                try (final OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static boolean awaitQuietly(final CountDownLatch latch) {
+        try {
+            return latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package net.classicube.shared;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+// Measures checksum throughput (GB/s) of ChecksumUtil, against the code it replaced (byte-at-a-time
+// CRC32, BigInteger hex formatting), and against memory-mapping the file. Not a unit test: run it
+// by hand, e.g. "java -cp build/classes:build/test/classes net.classicube.shared.ChecksumBenchmark".
+// The file is read once before timing, so all variants read from the OS page cache.
+public final class ChecksumBenchmark {
+
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final int WARMUP_RUNS = 3, TIMED_RUNS = 7;
+
+    public static void main(final String[] args)
+            throws Exception {
+        final File file = File.createTempFile("checksum-benchmark", ".bin");
+        try {
+            writeRandomFile(file);
+            final long expectedCrc = ChecksumUtil.computeCRC32(file);
+            final String expectedSha1 = ChecksumUtil.computeSha1(file);
+            System.out.printf("File: %d MB, JVM %s%n", FILE_SIZE / (1024 * 1024), System.getProperty("java.version"));
+
+            run("CRC32 byte-at-a-time (old)", file, new Variant() {
+                @Override
+                public Object run(final File file) throws IOException {
+                    return legacyCrc32(file);
+                }
+            }, expectedCrc);
+            run("CRC32 ChecksumUtil", file, new Variant() {
+                @Override
+                public Object run(final File file) throws IOException {
+                    return ChecksumUtil.computeCRC32(file);
+                }
+            }, expectedCrc);
+            run("CRC32 mapped", file, new Variant() {
+                @Override
+                public Object run(final File file) throws IOException {
+                    return mappedCrc32(file);
+                }
+            }, expectedCrc);
+            run("SHA1 stream+BigInteger (old)", file, new Variant() {
+                @Override
+                public Object run(final File file) throws IOException {
+                    return legacySha1(file);
+                }
+            }, expectedSha1);
+            run("SHA1 ChecksumUtil", file, new Variant() {
+                @Override
+                public Object run(final File file) throws IOException {
+                    return ChecksumUtil.computeSha1(file);
+                }
+            }, expectedSha1);
+            run("SHA1 mapped", file, new Variant() {
+                @Override
+                public Object run(final File file) throws IOException {
+                    return mappedSha1(file);
+                }
+            }, expectedSha1);
+        } finally {
+            if (!file.delete()) {
+                // A mapping may still hold the file open (on Windows).
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private static void run(final String name, final File file, final Variant variant, final Object expected)
+            throws IOException {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            variant.run(file);
+        }
+        final long[] nanos = new long[TIMED_RUNS];
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            final long start = System.nanoTime();
+            final Object result = variant.run(file);
+            nanos[i] = System.nanoTime() - start;
+            if (!expected.equals(result)) {
+                throw new IllegalStateException(name + " computed " + result + " instead of " + expected);
+            }
+        }
+        Arrays.sort(nanos);
+        final long median = nanos[TIMED_RUNS / 2];
+        System.out.printf("%-30s %7.2f GB/s  (median %d ms)%n",
+                name, FILE_SIZE / (double) median, median / (1000 * 1000));
+    }
+
+    private static void writeRandomFile(final File file)
+            throws IOException {
+        final Random random = new Random(1);
+        final byte[] chunk = new byte[1024 * 1024];
+        try (final OutputStream os = new FileOutputStream(file)) {
+            for (int written = 0; written < FILE_SIZE; written += chunk.length) {
+                random.nextBytes(chunk);
+                os.write(chunk);
+            }
+        }
+    }
+
+    // UpdateTask.computeCRC32, as it was before ChecksumUtil
+    private static long legacyCrc32(final File file)
+            throws IOException {
+        try (final InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            final CRC32 crc = new CRC32();
+            int cnt;
+            while ((cnt = inputStream.read()) != -1) {
+                crc.update(cnt);
+            }
+            return crc.getValue();
+        }
+    }
+
+    // UpdateTask.computeHash, as it was before ChecksumUtil
+    private static String legacySha1(final File file)
+            throws IOException {
+        final MessageDigest digest = ChecksumUtil.createSha1();
+        final byte[] ioBuffer = new byte[64 * 1024];
+        try (final DigestInputStream dis = new DigestInputStream(new FileInputStream(file), digest)) {
+            while (dis.read(ioBuffer) != -1) {
+                // just reading
+            }
+        }
+        final String hashString = new BigInteger(1, digest.digest()).toString(16);
+        final StringBuilder sb = new StringBuilder();
+        for (int toPrepend = 40 - hashString.length(); toPrepend > 0; toPrepend--) {
+            sb.append('0');
+        }
+        return sb.append(hashString).toString();
+    }
+
+    private static long mappedCrc32(final File file)
+            throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[64 * 1024];
+        try (final FileInputStream fis = new FileInputStream(file)) {
+            final FileChannel channel = fis.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buffer.hasRemaining()) {
+                final int len = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, len);
+                crc.update(chunk, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static String mappedSha1(final File file)
+            throws IOException {
+        final MessageDigest digest = ChecksumUtil.createSha1();
+        try (final FileInputStream fis = new FileInputStream(file)) {
+            final FileChannel channel = fis.getChannel();
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        return ChecksumUtil.toHexString(digest.digest());
+    }
+
+    private interface Variant {
+
+        Object run(File file) throws IOException;
+    }
+
+    private ChecksumBenchmark() {
+    }
+}
@@ -0,0 +1,264 @@
+package net.classicube.shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Measures decoder creation and block decoding with five threads at once, the same as the five
+// parallel downloads of an update. Not a unit test: run it by hand, e.g.
+// "java -cp build/classes:build/test/classes net.classicube.shared.DecoderBenchmark".
+// lzma.jar is downloaded at runtime, so decoder creation is timed with a stand-in class that does
+// what LzmaInputStream's constructor does: read the header and allocate the dictionary it names.
+public final class DecoderBenchmark {
+
+    private static final int THREADS = 5;
+    private static final int DECODERS_PER_THREAD = 2000;
+    private static final int CONTAINER_SIZE = 32 * 1024 * 1024, BLOCK_SIZE = 256 * 1024;
+    private static final int WARMUP_RUNS = 3, TIMED_RUNS = 7;
+    private static final Logger logger = Logger.getLogger(DecoderBenchmark.class.getName());
+
+    public static void main(final String[] args)
+            throws Exception {
+        logger.setLevel(Level.WARNING);
+        System.out.printf("%d threads, %d cores, JVM %s%n", THREADS,
+                Runtime.getRuntime().availableProcessors(), System.getProperty("java.version"));
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (final int dictionarySize : new int[]{BLOCK_SIZE, 8 * 1024 * 1024}) {
+                final byte[] header = makeLzmaHeader(dictionarySize);
+                final Constructor<? extends InputStream> constructor
+                        = StandInDecoder.class.getConstructor(InputStream.class);
+                final MethodHandle handle = MethodHandles.publicLookup()
+                        .findConstructor(StandInDecoder.class, MethodType.methodType(void.class, InputStream.class))
+                        .asType(MethodType.methodType(InputStream.class, InputStream.class));
+                final int decoders = dictionarySize > BLOCK_SIZE ? DECODERS_PER_THREAD / 20 : DECODERS_PER_THREAD;
+                runCreate("synchronized newInstance (old), dict " + dictionarySize / 1024 + " KB",
+                        executor, decoders, new Factory() {
+                    @Override
+                    public InputStream create(final InputStream stream) throws Exception {
+                        return legacyCreate(constructor, stream);
+                    }
+                }, header);
+                runCreate("MethodHandle, no lock, dict " + dictionarySize / 1024 + " KB",
+                        executor, decoders, new Factory() {
+                    @Override
+                    public InputStream create(final InputStream stream) throws Throwable {
+                        return (InputStream) handle.invokeExact(stream);
+                    }
+                }, header);
+            }
+            runDecodeBlocks(executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private interface Factory {
+
+        InputStream create(InputStream stream) throws Throwable;
+    }
+
+    // What makeLzmaInputStream did before: a class-wide lock around a reflective constructor call.
+    private static synchronized InputStream legacyCreate(final Constructor<? extends InputStream> constructor,
+            final InputStream stream)
+            throws Exception {
+        return constructor.newInstance(stream);
+    }
+
+    private static void runCreate(final String name, final ExecutorService executor, final int decodersPerThread,
+            final Factory factory, final byte[] header)
+            throws Exception {
+        final Callable<Void> task = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < decodersPerThread; i++) {
+                    try (final InputStream decoder = factory.create(new ByteArrayInputStream(header))) {
+                        decoder.read();
+                    } catch (final Exception ex) {
+                        throw ex;
+                    } catch (final Throwable ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                return null;
+            }
+        };
+        final long[] nanos = timeParallel(executor, task);
+        final long total = (long) THREADS * decodersPerThread;
+        System.out.printf("%-48s %10.0f decoders/s (best %.0f)%n", name,
+                total / (nanos[0] / 1e9), total / (nanos[1] / 1e9));
+    }
+
+    // Five containers decoded at the same time, all through the shared block decoder pool.
+    private static void runDecodeBlocks(final ExecutorService executor)
+            throws Exception {
+        final File container = File.createTempFile("decoder-benchmark", ".blocks");
+        try {
+            final long expectedCrc = writeContainer(container);
+            final File output = decodeCopy(container);
+            final long crc = ChecksumUtil.computeCRC32(output);
+            output.delete();
+            if (crc != expectedCrc) {
+                throw new IOException("Container decoded to the wrong data");
+            }
+            final long allocatedBefore = getAllocatedBytes();
+            final Callable<Void> task = new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    decodeCopy(container).delete();
+                    return null;
+                }
+            };
+            final long[] nanos = timeParallel(executor, task);
+            final double megabytes = (double) THREADS * CONTAINER_SIZE / (1024 * 1024);
+            final double allocatedPerContainer = (double) (getAllocatedBytes() - allocatedBefore)
+                    / ((WARMUP_RUNS + TIMED_RUNS) * THREADS) / (1024 * 1024);
+            System.out.printf("%-48s %10.0f MB/s (best %.0f), %.1f MB allocated per container%n",
+                    "Decode " + THREADS + " deflate containers", megabytes / (nanos[0] / 1e9),
+                    megabytes / (nanos[1] / 1e9), allocatedPerContainer);
+        } finally {
+            container.delete();
+        }
+    }
+
+    // processDownload deletes the file it decodes, so it's given a copy.
+    private static File decodeCopy(final File container)
+            throws IOException {
+        final File copy = File.createTempFile("decoder-benchmark", ".blocks");
+        Files.copy(container.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        final File output = SharedUpdaterCode.processDownload(logger, copy,
+                "http://localhost/benchmark.blocks", "decoder-benchmark");
+        if (output.length() != CONTAINER_SIZE) {
+            throw new IOException("Wrong output size: " + output.length());
+        }
+        return output;
+    }
+
+    // Returns the average and the best time of all timed runs.
+    private static long[] timeParallel(final ExecutorService executor, final Callable<Void> task)
+            throws Exception {
+        long totalNanos = 0, bestNanos = Long.MAX_VALUE;
+        for (int run = 0; run < WARMUP_RUNS + TIMED_RUNS; run++) {
+            final List<Future<Void>> results = new ArrayList<>(THREADS);
+            final long start = System.nanoTime();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(task));
+            }
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+            final long nanos = System.nanoTime() - start;
+            if (run >= WARMUP_RUNS) {
+                totalNanos += nanos;
+                bestNanos = Math.min(bestNanos, nanos);
+            }
+        }
+        return new long[]{totalNanos / TIMED_RUNS, bestNanos};
+    }
+
+    private static byte[] makeLzmaHeader(final int dictionarySize) {
+        return new byte[]{0x5D, (byte) dictionarySize, (byte) (dictionarySize >>> 8),
+            (byte) (dictionarySize >>> 16), (byte) (dictionarySize >>> 24), 0, 0, 0, 0, 0, 0, 0, 0};
+    }
+
+    // Same layout as HashGen writes: header, compressed length of each block, then the blocks.
+    // Half of every block is random, so it compresses about as well as the game's jars.
+    // Returns the CRC32 of the data it holds.
+    private static long writeContainer(final File file)
+            throws IOException {
+        final Random random = new Random(1);
+        final CRC32 crc = new CRC32();
+        final int blockCount = CONTAINER_SIZE / BLOCK_SIZE;
+        final List<byte[]> blocks = new ArrayList<>(blockCount);
+        final byte[] block = new byte[BLOCK_SIZE];
+        for (int i = 0; i < blockCount; i++) {
+            final byte[] noise = new byte[BLOCK_SIZE / 2];
+            random.nextBytes(noise);
+            System.arraycopy(noise, 0, block, 0, noise.length);
+            crc.update(block);
+            final Deflater deflater = new Deflater();
+            deflater.setInput(block);
+            deflater.finish();
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            deflater.end();
+            blocks.add(compressed.toByteArray());
+        }
+        try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.write(new byte[]{'C', 'C', 'B', 'K'});
+            out.writeShort(1);
+            out.writeByte(0); // deflate
+            out.writeByte(0);
+            out.writeInt(BLOCK_SIZE);
+            out.writeLong(CONTAINER_SIZE);
+            out.writeInt(blockCount);
+            for (final byte[] compressed : blocks) {
+                out.writeInt(compressed.length);
+            }
+            for (final byte[] compressed : blocks) {
+                out.write(compressed);
+            }
+        }
+        return crc.getValue();
+    }
+
+    // Heap allocated so far by all live threads, including the block decoder pool's.
+    private static long getAllocatedBytes() {
+        final com.sun.management.ThreadMXBean threads
+                = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (final long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    // Reads the LZMA header and allocates the dictionary it asks for, like LZMA.LzmaInputStream.
+    public static final class StandInDecoder extends FilterInputStream {
+
+        private final byte[] dictionary;
+
+        public StandInDecoder(final InputStream in)
+                throws IOException {
+            super(in);
+            final byte[] header = new byte[13];
+            if (in.read(header) != header.length) {
+                throw new IOException("Truncated header");
+            }
+            final int dictionarySize = (header[1] & 0xFF) | ((header[2] & 0xFF) << 8)
+                    | ((header[3] & 0xFF) << 16) | ((header[4] & 0xFF) << 24);
+            dictionary = new byte[dictionarySize];
+        }
+
+        @Override
+        public int read() {
+            return dictionary[0];
+        }
+    }
+}
@@ -4,17 +4,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import javax.swing.JOptionPane;
+import net.classicube.shared.ChecksumUtil;
 import net.classicube.shared.SharedUpdaterCode;
 
 public class Program {
@@ -22,8 +24,10 @@ public class Program {
     private static final Logger logger = Logger.getLogger(Program.class.getName());
     private static final String LAUNCHER_ENTRY_CLASS = "net.classicube.launcher.EntryPoint",
             LAUNCHER_JAR_NAME = "launcher.jar",
+            LAUNCHER_REMOTE_NAME = "launcher.jar.pack.lzma",
             LAUNCHER_ENTRY_METHOD = "main",
-            BUG_REPORT_URL = "http://is.gd/CCL_bugs";
+            BUG_REPORT_URL = "http://is.gd/CCL_bugs",
+            LZMA_CLASS_ENTRY = "LZMA/LzmaInputStream.class";
     private static File launcherDir, launcherJar;
 
     public static void main(String[] args) {
@@ -89,17 +93,96 @@ public class Program {
     private static void downloadLauncher() throws IOException {
         final File lzmaJar = new File(launcherDir, SharedUpdaterCode.LZMA_JAR_NAME);
         if (!lzmaJar.exists()) {
-            final File lzmaTempFile = downloadFile("lzma.jar");
+            final File lzmaTempFile = downloadLzmaJar();
             replaceFile(lzmaTempFile, lzmaJar);
+            SharedUpdaterCode.deletePartialDownload(lzmaTempFile);
         }
-        final File launcherTempFile = downloadFile("launcher.jar.pack.lzma");
+        final String expectedHash;
         try {
-            final File processedLauncherFile = SharedUpdaterCode.processDownload(
-                    logger, launcherTempFile, "launcher.jar.pack.lzma", "launcher.jar");
-            replaceFile(processedLauncherFile, launcherJar);
-        } catch (IOException ex) {
+            expectedHash = SharedUpdaterCode.getRemoteManifestHash(LAUNCHER_REMOTE_NAME);
+        } catch (final IOException ex) {
+            logger.log(Level.SEVERE, "Error fetching remote index", ex);
+            throw new IOException("Error fetching remote index", ex);
+        }
+        // A resumed download may have picked up stale or corrupted bytes. If the result does not
+        // match the remote index, it's downloaded again from scratch, once.
+        File processedLauncherFile = downloadAndUnpackLauncher();
+        if (!hasManifestHash(processedLauncherFile, expectedHash)) {
+            logger.log(Level.WARNING, "Downloaded launcher.jar does not match remote index. Downloading it again.");
+            processedLauncherFile.delete();
+            processedLauncherFile = downloadAndUnpackLauncher();
+            if (!hasManifestHash(processedLauncherFile, expectedHash)) {
+                processedLauncherFile.delete();
+                throw new IOException("Downloaded launcher.jar does not match remote index");
+            }
+        }
+        replaceFile(processedLauncherFile, launcherJar);
+    }
+
+    // Downloads (or resumes downloading) the launcher, and unpacks it into a temporary file.
+    // The partial download is discarded either way, so the next attempt starts from scratch.
+    private static File downloadAndUnpackLauncher() throws IOException {
+        final File launcherTempFile = downloadFile(LAUNCHER_REMOTE_NAME);
+        try {
+            return SharedUpdaterCode.processDownload(
+                    logger, launcherTempFile, LAUNCHER_REMOTE_NAME, LAUNCHER_JAR_NAME);
+        } catch (IOException | RuntimeException ex) {
             logger.log(Level.SEVERE, "Error unpacking launcher.jar", ex);
             throw new IOException("Error unpacking launcher.jar", ex);
+        } finally {
+            SharedUpdaterCode.deletePartialDownload(launcherTempFile);
+        }
+    }
+
+    private static boolean hasManifestHash(final File jar, final String expectedHash) {
+        try {
+            final String actualHash = ChecksumUtil.computeManifestHash(jar);
+            if (actualHash.equalsIgnoreCase(expectedHash)) {
+                return true;
+            }
+            logger.log(Level.WARNING, "Manifest hash of {0} is {1}, expected {2}",
+                    new Object[]{jar.getName(), actualHash, expectedHash});
+            return false;
+        } catch (final IOException | SecurityException ex) {
+            logger.log(Level.WARNING, "Error checking " + jar.getName(), ex);
+            return false;
+        }
+    }
+
+    // lzma.jar is not listed in any index, so there is no hash to check it against. Instead, it's
+    // checked to be a readable jar that has the decoder class in it. A bad (e.g. stale, resumed)
+    // download is discarded and fetched again from scratch, once.
+    private static File downloadLzmaJar() throws IOException {
+        File lzmaTempFile = downloadFile("lzma.jar");
+        if (!isValidLzmaJar(lzmaTempFile)) {
+            logger.log(Level.WARNING, "Downloaded lzma.jar is corrupted. Downloading it again.");
+            SharedUpdaterCode.deletePartialDownload(lzmaTempFile);
+            lzmaTempFile = downloadFile("lzma.jar");
+            if (!isValidLzmaJar(lzmaTempFile)) {
+                SharedUpdaterCode.deletePartialDownload(lzmaTempFile);
+                throw new IOException("Downloaded lzma.jar is corrupted");
+            }
+        }
+        return lzmaTempFile;
+    }
+
+    private static boolean isValidLzmaJar(final File file) {
+        try (final JarFile jarFile = new JarFile(file, true)) {
+            final JarEntry entry = jarFile.getJarEntry(LZMA_CLASS_ENTRY);
+            if (entry == null) {
+                return false;
+            }
+            // Reading the whole entry checks its CRC (and signature, if signed).
+            try (final InputStream in = jarFile.getInputStream(entry)) {
+                final byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    // just reading
+                }
+            }
+            return true;
+        } catch (final IOException | SecurityException ex) {
+            logger.log(Level.WARNING, "Error checking " + file.getName(), ex);
+            return false;
         }
     }
 
@@ -118,15 +201,13 @@ public class Program {
         return loader.loadClass(LAUNCHER_ENTRY_CLASS);
     }
 
+    // Downloads a file to a stable location in launcher's directory, resuming earlier partial
+    // downloads (if any) where possible.
     private static File downloadFile(final String remoteName) throws IOException {
         try {
-            final File tempFile = File.createTempFile(remoteName, ".downloaded");
-            final URL website = new URL(SharedUpdaterCode.BASE_URL + remoteName);
-            final ReadableByteChannel rbc = Channels.newChannel(website.openStream());
-            try (final FileOutputStream fos = new FileOutputStream(tempFile)) {
-                fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
-            }
-            return tempFile;
+            final File partialFile = SharedUpdaterCode.getPartialDownloadFile(remoteName);
+            SharedUpdaterCode.downloadResumable(logger, SharedUpdaterCode.BASE_URL + remoteName, partialFile);
+            return partialFile;
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Error downloading launcher component " + remoteName, ex);
             throw new IOException("Error downloading launcher component " + remoteName, ex);
@@ -0,0 +1,393 @@
+package net.classicube.hashgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Pack200;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+// Packages a release: compresses each jar (Pack200, then LZMA), and writes the index that the
+// launcher downloads to find out what to update. Files are processed in parallel.
+// Each jar is also written as a block container (Pack200, then independently compressed blocks),
+// which newer launchers prefer, since its blocks can be decoded in parallel.
+//
+// Usage (needs JDK 8 or older for Pack200):
+//   ant -f HashGen/build.xml jar          (builds HashGen/dist/HashGen.jar)
+//   cd <directory that holds the jars>
+//   java -jar <path to>/HashGen.jar [jar names...]
+// or, in one step: ant -f HashGen/build.xml run -Djars.dir=<directory that holds the jars>
+//
+// LZMA compression is done by an external command (-Dhashgen.lzma, default "lzma -9 -k -f").
+// Blocks are compressed with Deflater, unless -Dhashgen.blockMethod=lzma is given.
+// Outputs, next to the jars:
+//   <name>.pack.lzma  compressed artifacts
+//   <name>.pack.blocks  same, as block containers (format: see SharedUpdaterCode in the launcher)
+//   version           index in text format (first three columns are all that old launchers read)
+//   version.bin       the same index in binary format
+// Both index formats are described (and parsed) by ArtifactIndex in the launcher.
+public final class HashGen {
+
+    private static final String[] DEFAULT_FILES = {
+        "launcher.jar",
+        "client.jar",
+        "lwjgl.jar",
+        "lwjgl_util.jar",
+        "jinput.jar",
+        "windows_natives.jar",
+        "macosx_natives.jar",
+        "linux_natives.jar",
+        "solaris_natives.jar"
+    };
+    private static final String LZMA_COMMAND = System.getProperty("hashgen.lzma", "lzma -9 -k -f");
+    // Must match what the launcher can use for segmented downloads (see SegmentedDownload).
+    static final int CHUNK_SIZE = 512 * 1024;
+    // Must match ArtifactIndex in the launcher.
+    private static final byte[] BINARY_MAGIC = {'C', 'C', 'I', 'X'};
+    private static final int BINARY_FORMAT_VERSION = 1;
+    private static final int FLAG_HAS_MANIFEST = 1;
+    private static final String NO_MANIFEST_HASH = "<none>";
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    // Must match SharedUpdaterCode in the launcher.
+    private static final byte[] BLOCKS_MAGIC = {'C', 'C', 'B', 'K'};
+    private static final int BLOCKS_FORMAT_VERSION = 1,
+            BLOCKS_METHOD_DEFLATE = 0,
+            BLOCKS_METHOD_LZMA = 1;
+    private static final int BLOCK_SIZE = 256 * 1024;
+    private static final int BLOCKS_METHOD
+            = ("lzma".equalsIgnoreCase(System.getProperty("hashgen.blockMethod")) ? BLOCKS_METHOD_LZMA
+                    : BLOCKS_METHOD_DEFLATE);
+
+    public static void main(final String[] args)
+            throws Exception {
+        final String[] fileNames = (args.length > 0 ? args : DEFAULT_FILES);
+        final File dir = new File(".").getCanonicalFile();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        final List<Future<List<Artifact>>> results = new ArrayList<>();
+        try {
+            for (final String fileName : fileNames) {
+                final File jarFile = new File(dir, fileName);
+                results.add(executor.submit(new Callable<List<Artifact>>() {
+                    @Override
+                    public List<Artifact> call() throws Exception {
+                        return packageJar(jarFile);
+                    }
+                }));
+            }
+            // Index entries stay in the order given, regardless of which file finished first.
+            final List<Artifact> artifacts = new ArrayList<>();
+            for (final Future<List<Artifact>> result : results) {
+                try {
+                    artifacts.addAll(result.get());
+                } catch (final ExecutionException ex) {
+                    throw new IOException("Packaging failed", ex.getCause());
+                }
+            }
+            writeTextIndex(artifacts, new File(dir, "version"));
+            writeBinaryIndex(artifacts, new File(dir, "version.bin"));
+            for (final Artifact artifact : artifacts) {
+                System.out.println(artifact.toTextLine());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Returns index entries for the .pack.lzma file and the .pack.blocks file, in that order.
+    private static List<Artifact> packageJar(final File jarFile)
+            throws IOException, InterruptedException {
+        if (!jarFile.isFile()) {
+            throw new IOException("File not found: " + jarFile);
+        }
+        final byte[] manifestHash = getManifestHash(jarFile);
+        final File packFile = new File(jarFile.getPath() + ".pack");
+        pack(jarFile, packFile);
+        final long unpackedSize = getUnpackedSize(packFile);
+
+        final File blocksFile = new File(jarFile.getPath() + ".pack.blocks");
+        writeBlocks(packFile, blocksFile);
+        compressLzma(packFile);
+        final File lzmaFile = new File(packFile.getPath() + ".lzma");
+        if (!lzmaFile.isFile()) {
+            throw new IOException("LZMA command did not produce " + lzmaFile);
+        }
+        if (!packFile.delete()) {
+            packFile.deleteOnExit();
+        }
+
+        final List<Artifact> artifacts = new ArrayList<>();
+        for (final File file : new File[]{lzmaFile, blocksFile}) {
+            final Artifact artifact = new Artifact();
+            artifact.name = file.getName();
+            artifact.size = file.length();
+            artifact.unpackedSize = unpackedSize;
+            artifact.manifestHash = manifestHash;
+            hashFile(file, artifact);
+            artifacts.add(artifact);
+            System.err.println("Packaged " + artifact.name);
+        }
+        return artifacts;
+    }
+
+    // Writes a block container: header, then the compressed length of each block, then the blocks.
+    private static void writeBlocks(final File inputFile, final File blocksFile)
+            throws IOException, InterruptedException {
+        final long inputSize = inputFile.length();
+        final int blockCount = (int) ((inputSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        final List<byte[]> blocks = new ArrayList<>(blockCount);
+        try (final DataInputStream in = new DataInputStream(new FileInputStream(inputFile))) {
+            for (int i = 0; i < blockCount; i++) {
+                final byte[] block = new byte[(int) Math.min(BLOCK_SIZE, inputSize - (long) i * BLOCK_SIZE)];
+                in.readFully(block);
+                blocks.add(BLOCKS_METHOD == BLOCKS_METHOD_LZMA ? compressBlockLzma(inputFile, i, block)
+                        : compressBlockDeflate(block));
+            }
+        }
+        try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(blocksFile))) {
+            out.write(BLOCKS_MAGIC);
+            out.writeShort(BLOCKS_FORMAT_VERSION);
+            out.writeByte(BLOCKS_METHOD);
+            out.writeByte(0); // reserved
+            out.writeInt(BLOCK_SIZE);
+            out.writeLong(inputSize);
+            out.writeInt(blockCount);
+            for (final byte[] block : blocks) {
+                out.writeInt(block.length);
+            }
+            for (final byte[] block : blocks) {
+                out.write(block);
+            }
+        }
+    }
+
+    private static byte[] compressBlockDeflate(final byte[] block) {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(block);
+            deflater.finish();
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.length / 2);
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            while (!deflater.finished()) {
+                final int len = deflater.deflate(buffer);
+                compressed.write(buffer, 0, len);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] compressBlockLzma(final File inputFile, final int blockNumber, final byte[] block)
+            throws IOException, InterruptedException {
+        final File blockFile = new File(inputFile.getPath() + ".block" + blockNumber);
+        final File compressedFile = new File(blockFile.getPath() + ".lzma");
+        try {
+            Files.write(blockFile.toPath(), block);
+            compressLzma(blockFile);
+            return Files.readAllBytes(compressedFile.toPath());
+        } finally {
+            blockFile.delete();
+            compressedFile.delete();
+        }
+    }
+
+    // SHA1 of the jar's manifest, which is what the launcher compares installed jars against.
+    private static byte[] getManifestHash(final File jarFile)
+            throws IOException {
+        try (final JarFile jar = new JarFile(jarFile)) {
+            final ZipEntry manifest = jar.getEntry("META-INF/MANIFEST.MF");
+            if (manifest == null) {
+                return null;
+            }
+            final MessageDigest digest = createSha1();
+            try (final InputStream is = jar.getInputStream(manifest)) {
+                updateDigest(digest, is);
+            }
+            return digest.digest();
+        }
+    }
+
+    private static void pack(final File jarFile, final File packFile)
+            throws IOException {
+        final Pack200.Packer packer = Pack200.newPacker();
+        final Map<String, String> props = packer.properties();
+        props.put(Pack200.Packer.EFFORT, "9");
+        try (final JarFile jar = new JarFile(jarFile);
+                final OutputStream os = new FileOutputStream(packFile)) {
+            packer.pack(jar, os);
+        }
+    }
+
+    // Size of the jar that the launcher will end up with, after unpacking.
+    private static long getUnpackedSize(final File packFile)
+            throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream();
+        try (final JarOutputStream jos = new JarOutputStream(counter)) {
+            Pack200.newUnpacker().unpack(packFile, jos);
+        }
+        return counter.count;
+    }
+
+    private static void compressLzma(final File packFile)
+            throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<>(Arrays.asList(LZMA_COMMAND.split(" ")));
+        command.add(packFile.getPath());
+        final Process process = new ProcessBuilder(command).inheritIO().start();
+        final int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IOException("LZMA command failed (exit code " + exitCode + ") for " + packFile);
+        }
+    }
+
+    // Computes SHA1 of the whole file, and of each CHUNK_SIZE piece of it.
+    private static void hashFile(final File file, final Artifact artifact)
+            throws IOException {
+        final MessageDigest fileDigest = createSha1();
+        final MessageDigest chunkDigest = createSha1();
+        final byte[] buffer = new byte[IO_BUFFER_SIZE];
+        long chunkBytes = 0;
+        try (final InputStream is = new FileInputStream(file)) {
+            int len;
+            while ((len = is.read(buffer, 0, (int) Math.min(buffer.length, CHUNK_SIZE - chunkBytes))) != -1) {
+                fileDigest.update(buffer, 0, len);
+                chunkDigest.update(buffer, 0, len);
+                chunkBytes += len;
+                if (chunkBytes == CHUNK_SIZE) {
+                    artifact.chunkHashes.add(chunkDigest.digest());
+                    chunkBytes = 0;
+                }
+            }
+        }
+        if (chunkBytes > 0) {
+            artifact.chunkHashes.add(chunkDigest.digest());
+        }
+        artifact.fileHash = fileDigest.digest();
+    }
+
+    private static void writeTextIndex(final List<Artifact> artifacts, final File file)
+            throws IOException {
+        try (final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (final Artifact artifact : artifacts) {
+                writer.write(artifact.toTextLine());
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static void writeBinaryIndex(final List<Artifact> artifacts, final File file)
+            throws IOException {
+        try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.write(BINARY_MAGIC);
+            out.writeShort(BINARY_FORMAT_VERSION);
+            out.writeInt(artifacts.size());
+            for (final Artifact artifact : artifacts) {
+                out.writeUTF(artifact.name);
+                out.writeLong(artifact.size);
+                out.writeLong(artifact.unpackedSize);
+                out.writeByte(artifact.manifestHash != null ? FLAG_HAS_MANIFEST : 0);
+                if (artifact.manifestHash != null) {
+                    out.write(artifact.manifestHash);
+                }
+                out.write(artifact.fileHash);
+                out.writeInt(CHUNK_SIZE);
+                out.writeInt(artifact.chunkHashes.size());
+                for (final byte[] chunkHash : artifact.chunkHashes) {
+                    out.write(chunkHash);
+                }
+            }
+        }
+    }
+
+    private static MessageDigest createSha1() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void updateDigest(final MessageDigest digest, final InputStream is)
+            throws IOException {
+        final byte[] buffer = new byte[IO_BUFFER_SIZE];
+        int len;
+        while ((len = is.read(buffer)) != -1) {
+            digest.update(buffer, 0, len);
+        }
+    }
+
+    static String toHexString(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private final static class Artifact {
+
+        String name;
+        long size;
+        long unpackedSize;
+        byte[] manifestHash;
+        byte[] fileHash;
+        final List<byte[]> chunkHashes = new ArrayList<>();
+
+        // <name> <size> <manifestHash> <chunkSize>:<sha1>,... <unpackedSize> <fileSha1>
+        String toTextLine() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(name).append(' ').append(size).append(' ')
+                    .append(manifestHash != null ? toHexString(manifestHash) : NO_MANIFEST_HASH)
+                    .append(' ').append(CHUNK_SIZE).append(':');
+            for (int i = 0; i < chunkHashes.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(toHexString(chunkHashes.get(i)));
+            }
+            sb.append(' ').append(unpackedSize).append(' ').append(toHexString(fileHash));
+            return sb.toString();
+        }
+    }
+
+    private final static class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+
+    private HashGen() {
+    }
+}